@@ -125,6 +125,73 @@ public class BoundingBox implements BoundingShape {
         return new BoundingBox(ll, ur);
     }
 
+    // Box that contains all points within meters of the rectangle between
+    // (latMin, lonMin) and (latMax, lonMax); it may go across +/-180 deg.
+    static BoundingBox around(double latMin, double lonMin, double latMax, double lonMax, double meters) {
+        double dLat = Math.toDegrees(meters / LatLon.EARTH_RADIUS_METERS);
+        double latLow = Math.max(-90, latMin - dLat);
+        double latHigh = Math.min(90, latMax + dLat);
+
+        // by the haversine formula, points dLon apart with cos(lat) >= cosLat
+        // are at least 2 * R * asin(cosLat * sin(dLon / 2)) apart
+        double cosLat = Math.cos(Math.toRadians(Math.max(Math.abs(latLow), Math.abs(latHigh))));
+        double sinHalfLon = Math.sin(meters / (2 * LatLon.EARTH_RADIUS_METERS)) / cosLat;
+        if (meters >= Math.PI * LatLon.EARTH_RADIUS_METERS || sinHalfLon >= 1) {
+            return new BoundingBox(new LatLon(latLow, -180), new LatLon(latHigh, 180));
+        }
+
+        double dLon = Math.toDegrees(2 * Math.asin(sinHalfLon));
+        if (lonMax - lonMin + 2 * dLon >= 360) {
+            return new BoundingBox(new LatLon(latLow, -180), new LatLon(latHigh, 180));
+        }
+
+        double lonLow = lonMin - dLon;
+        double lonHigh = lonMax + dLon;
+        return new BoundingBox(new LatLon(latLow, lonLow < -180 ? lonLow + 360 : lonLow),
+                new LatLon(latHigh, lonHigh > 180 ? lonHigh - 360 : lonHigh));
+    }
+
+    // shortest great-circle distance from p to any point of this box
+    public double getDistanceInMeters(LatLon p) {
+        return getDistanceInMeters(p, lowerLeft.lat, lowerLeft.lon, upperRight.lat, upperRight.lon);
+    }
+
+    static double getDistanceInMeters(LatLon p, double latMin, double lonMin, double latMax, double lonMax) {
+        if (p.lon >= lonMin && p.lon <= lonMax) {
+            // the closest point is on the same meridian
+            double dLat = p.lat < latMin ? latMin - p.lat : (p.lat > latMax ? p.lat - latMax : 0);
+            return Math.toRadians(dLat) * LatLon.EARTH_RADIUS_METERS;
+        }
+
+        // Otherwise the closest point is on one of the two meridian edges
+        // (points on the parallel edges are at least as far away as a corner).
+        return Math.min(getDistanceToMeridian(p, lonMin, latMin, latMax),
+                getDistanceToMeridian(p, lonMax, latMin, latMax));
+    }
+
+    // distance from p to the meridian segment at lon between latMin and latMax
+    private static double getDistanceToMeridian(LatLon p, double lon, double latMin, double latMax) {
+        double dLon = Math.abs(p.lon - lon) % 360;
+        if (dLon > 180) {
+            dLon = 360 - dLon;
+        }
+
+        if (dLon < 90) {
+            // foot of the perpendicular from p to the meridian (right spherical triangle with the pole)
+            double lat = Math.toRadians(p.lat);
+            double cosDLon = Math.cos(Math.toRadians(dLon));
+            double latFoot = Math.toDegrees(Math.atan(Math.tan(lat) / cosDLon));
+            if (latFoot >= latMin && latFoot <= latMax) {
+                double crossTrack = Math.asin(Math.cos(lat) * Math.sin(Math.toRadians(dLon)));
+                return crossTrack * LatLon.EARTH_RADIUS_METERS;
+            }
+        }
+
+        // the distance along the meridian has a single minimum, so the closest
+        // point of the segment is one of its ends
+        return Math.min(p.getDistanceInMeters(latMin, lon), p.getDistanceInMeters(latMax, lon));
+    }
+
     @Override
     public boolean contains(LatLon p) {
         return contains(p.lat, p.lon);
@@ -132,10 +199,46 @@ public class BoundingBox implements BoundingShape {
 
     @Override
     public boolean contains(double lat, double lon) {
-        return this.lowerLeft.lat <= lat
-                && this.lowerLeft.lon <= lon
-                && this.upperRight.lat >= lat
-                && this.upperRight.lon >= lon;
+        if (this.lowerLeft.lat > lat || this.upperRight.lat < lat) {
+            return false;
+        } else if (this.lowerLeft.lon > this.upperRight.lon) {
+            // across +/-180 deg.
+            return this.lowerLeft.lon <= lon || this.upperRight.lon >= lon;
+        } else {
+            return this.lowerLeft.lon <= lon && this.upperRight.lon >= lon;
+        }
+    }
+
+    @Override
+    public Overlap getOverlap(double latMin, double lonMin, double latMax, double lonMax) {
+        return getOverlap(this.lowerLeft, this.upperRight, latMin, lonMin, latMax, lonMax);
+    }
+
+    // overlap of a rectangle with the box between lowerLeft and upperRight
+    // which may go across +/-180 deg.
+    static Overlap getOverlap(LatLon lowerLeft, LatLon upperRight,
+            double latMin, double lonMin, double latMax, double lonMax) {
+        if (latMax < lowerLeft.lat || latMin > upperRight.lat) {
+            return Overlap.OUTSIDE;
+        }
+
+        boolean intersectsLon;
+        boolean insideLon;
+        if (lowerLeft.lon > upperRight.lon) {
+            intersectsLon = lonMax >= lowerLeft.lon || lonMin <= upperRight.lon;
+            insideLon = lonMin >= lowerLeft.lon || lonMax <= upperRight.lon;
+        } else {
+            intersectsLon = lonMax >= lowerLeft.lon && lonMin <= upperRight.lon;
+            insideLon = lonMin >= lowerLeft.lon && lonMax <= upperRight.lon;
+        }
+
+        if (!intersectsLon) {
+            return Overlap.OUTSIDE;
+        } else if (insideLon && latMin >= lowerLeft.lat && latMax <= upperRight.lat) {
+            return Overlap.INSIDE;
+        } else {
+            return Overlap.PARTIAL;
+        }
     }
 
     @Override
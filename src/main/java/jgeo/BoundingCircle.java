@@ -48,4 +48,33 @@ public class BoundingCircle implements BoundingShape {
 
         return this.bb.contains(lat, lon) && center.getDistanceInMeters(lat, lon) <= this.radiusMeter;
     }
+
+    @Override
+    public Overlap getOverlap(double latMin, double lonMin, double latMax, double lonMax) {
+        Overlap bbOverlap = this.bb.getOverlap(latMin, lonMin, latMax, lonMax);
+        if (bbOverlap == Overlap.OUTSIDE) {
+            return Overlap.OUTSIDE;
+        }
+
+        Overlap innerOverlap = this.innerBox.getOverlap(latMin, lonMin, latMax, lonMax);
+        if (innerOverlap == Overlap.INSIDE) {
+            return Overlap.INSIDE;
+        }
+
+        // the point of a rectangle furthest away from the center is one of its corners
+        if (bbOverlap == Overlap.INSIDE
+                && center.getDistanceInMeters(latMin, lonMin) <= this.radiusMeter
+                && center.getDistanceInMeters(latMin, lonMax) <= this.radiusMeter
+                && center.getDistanceInMeters(latMax, lonMin) <= this.radiusMeter
+                && center.getDistanceInMeters(latMax, lonMax) <= this.radiusMeter) {
+            return Overlap.INSIDE;
+        }
+
+        if (innerOverlap == Overlap.OUTSIDE
+                && BoundingBox.getDistanceInMeters(center, latMin, lonMin, latMax, lonMax) > this.radiusMeter) {
+            return Overlap.OUTSIDE;
+        }
+
+        return Overlap.PARTIAL;
+    }
 }
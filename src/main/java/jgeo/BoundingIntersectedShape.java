@@ -57,4 +57,21 @@ public class BoundingIntersectedShape implements BoundingShape {
 
         return true;
     }
-}
\ No newline at end of file
+
+    @Override
+    public Overlap getOverlap(double latMin, double lonMin, double latMax, double lonMax) {
+        Overlap res = this.bb.getOverlap(latMin, lonMin, latMax, lonMax);
+        for (BoundingShape shape : this.shapes) {
+            if (res == Overlap.OUTSIDE) {
+                break;
+            }
+
+            Overlap o = shape.getOverlap(latMin, lonMin, latMax, lonMax);
+            if (o != Overlap.INSIDE) {
+                res = o;
+            }
+        }
+
+        return res;
+    }
+}
@@ -1,6 +1,16 @@
 package jgeo;
 
 public interface BoundingShape {
+    // relation of an area to a shape
+    public enum Overlap {
+        // all points of the area are contained in the shape
+        INSIDE,
+        // no point of the area is contained in the shape
+        OUTSIDE,
+        // unknown or some points are contained
+        PARTIAL
+    }
+
     public LatLon getLowerLeft();
 
     public LatLon getUpperRight();
@@ -10,4 +20,11 @@ public interface BoundingShape {
     public boolean contains(LatLon p);
 
     public boolean contains(double lat, double lon);
+
+    // Classifies the given rectangle with respect to this shape; the default only
+    // checks the bounding box of the shape and never returns INSIDE.
+    public default Overlap getOverlap(double latMin, double lonMin, double latMax, double lonMax) {
+        Overlap bb = BoundingBox.getOverlap(getLowerLeft(), getUpperRight(), latMin, lonMin, latMax, lonMax);
+        return bb == Overlap.OUTSIDE ? Overlap.OUTSIDE : Overlap.PARTIAL;
+    }
 }
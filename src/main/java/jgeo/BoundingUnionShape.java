@@ -59,4 +59,24 @@ public class BoundingUnionShape implements BoundingShape {
 
         return false;
     }
+
+    @Override
+    public Overlap getOverlap(double latMin, double lonMin, double latMax, double lonMax) {
+        Overlap bbOverlap = this.bb.getOverlap(latMin, lonMin, latMax, lonMax);
+        if (bbOverlap == Overlap.OUTSIDE) {
+            return Overlap.OUTSIDE;
+        }
+
+        Overlap res = Overlap.OUTSIDE;
+        for (BoundingShape shape : this.shapes) {
+            Overlap o = shape.getOverlap(latMin, lonMin, latMax, lonMax);
+            if (o == Overlap.INSIDE) {
+                return bbOverlap;
+            } else if (o == Overlap.PARTIAL) {
+                res = Overlap.PARTIAL;
+            }
+        }
+
+        return res;
+    }
 }
@@ -0,0 +1,21 @@
+package jgeo;
+
+// Aggregate of the objects in a cell, see QuadTree.aggregate.
+public class Cluster<T extends LocationObject> {
+
+    final public BoundingBox cell;
+    final public int count;
+
+    // mean position of the objects
+    final public LatLon centroid;
+
+    // best ranked object
+    final public T representative;
+
+    public Cluster(BoundingBox cell, int count, LatLon centroid, T representative) {
+        this.cell = cell;
+        this.count = count;
+        this.centroid = centroid;
+        this.representative = representative;
+    }
+}
@@ -353,4 +353,23 @@ public class ConcaveHull implements BoundingShape {
         return this.bb.contains(lat, lon) && this.inside(new LatLon(lat, lon));
     }
 
+    @Override
+    public Overlap getOverlap(double latMin, double lonMin, double latMax, double lonMax) {
+        if (this.bb.getOverlap(latMin, lonMin, latMax, lonMax) == Overlap.OUTSIDE) {
+            return Overlap.OUTSIDE;
+        }
+
+        // inside if all corners are inside and no edge of the hull crosses the rectangle
+        LatLon ll = new LatLon(latMin, lonMin);
+        LatLon lr = new LatLon(latMin, lonMax);
+        LatLon ul = new LatLon(latMax, lonMin);
+        LatLon ur = new LatLon(latMax, lonMax);
+        if (contains(ll) && contains(lr) && contains(ul) && contains(ur)
+                && !intersects(ll, lr, false) && !intersects(lr, ur, false)
+                && !intersects(ur, ul, false) && !intersects(ul, ll, false)) {
+            return Overlap.INSIDE;
+        }
+
+        return Overlap.PARTIAL;
+    }
 }
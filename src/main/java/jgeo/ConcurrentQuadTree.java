@@ -0,0 +1,425 @@
+package jgeo;
+
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import jgeo.BoundingShape.Overlap;
+
+// Thread-safe variant of QuadTree.
+//
+// Writers are striped by the subtree at stripeLevel, i.e., two put calls only
+// contend if their objects fall into the same subtree at that level. Readers
+// (getInArea, rankedSearch, linearSearch, count) never lock: children are
+// published with one CAS so a node is either not split or split into all four
+// children, and leaves are append-only so a reader sees a consistent prefix of
+// every leaf. The searches are the ones of QuadTree, see TreeSearch.
+public class ConcurrentQuadTree<T extends LocationObject> {
+    private static final int DEFAULT_STRIPE_LEVEL = 4;
+    private static final Object[] EMPTY = new Object[0];
+    private static final long[] NO_RANKS = new long[0];
+
+    private final int maxLevel;
+    private final int bucketCapacity;
+    private final int stripeLevel;
+    private final Object[] locks;
+    private final AtomicInteger numNodes = new AtomicInteger();
+    private final AtomicInteger numObjects = new AtomicInteger();
+
+    // for linear search if too many results, in the order of QuadTree.getAll
+    private final ConcurrentSkipListMap<RankEntry, T> sortedByRank = new ConcurrentSkipListMap<RankEntry, T>();
+    private final AtomicLong numPuts = new AtomicLong();
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<ConcurrentQuadTree.Node, ConcurrentQuadTree.Node[]> CHILDREN =
+            AtomicReferenceFieldUpdater.newUpdater(ConcurrentQuadTree.Node.class, ConcurrentQuadTree.Node[].class,
+                    "children");
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<ConcurrentQuadTree.Node> COUNT =
+            AtomicIntegerFieldUpdater.newUpdater(ConcurrentQuadTree.Node.class, "count");
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicLongFieldUpdater<ConcurrentQuadTree.Node> BEST_RANK =
+            AtomicLongFieldUpdater.newUpdater(ConcurrentQuadTree.Node.class, "bestRank");
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicLongFieldUpdater<ConcurrentQuadTree.Node> CATEGORIES =
+            AtomicLongFieldUpdater.newUpdater(ConcurrentQuadTree.Node.class, "categories");
+
+    // position of an object in the rank order: by rank and key as in
+    // RankIndex, objects with the same rank and key in the order of put
+    private static final class RankEntry implements Comparable<RankEntry> {
+        final long rank;
+        final String key;
+        final long seq;
+
+        RankEntry(long rank, String key, long seq) {
+            this.rank = rank;
+            this.key = key;
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo(RankEntry o) {
+            int res = RankIndex.compare(this.rank, this.key, o.rank, o.key);
+            return res != 0 ? res : Long.compare(this.seq, o.seq);
+        }
+    }
+
+    public Collection<T> getAll() {
+        // the size of the map is not known without counting its entries
+        final Collection<T> values = Collections.unmodifiableCollection(this.sortedByRank.values());
+        return new AbstractCollection<T>() {
+            @Override
+            public Iterator<T> iterator() {
+                return values.iterator();
+            }
+
+            @Override
+            public int size() {
+                return numObjects.get();
+            }
+        };
+    }
+
+    class Node implements SearchNode.Ranked<T> {
+
+        private final int level;
+        private final double x0, y0, x1, y1;
+
+        // quadrant indices of the path from the root, two bits per level
+        private final long code;
+
+        // lowerLeft, lowerRight, upperLeft, upperRight or null if not split
+        volatile Node[] children = null;
+
+        // Append-only: the writer stores the object, its rank and key (and the
+        // grown arrays) before it publishes the new size, so reading size
+        // first and then the arrays always gives at least size valid entries.
+        // A split node keeps them for readers that still scan it as a leaf.
+        private volatile Object[] objects = EMPTY;
+        private volatile long[] ranks = NO_RANKS;
+        private volatile String[] keys = null;
+        private volatile int size = 0;
+
+        // number of objects, best (smallest) rank and union of the categories
+        // of the objects in this subtree; updated before an object is published
+        volatile int count = 0;
+        volatile long bestRank = Long.MAX_VALUE;
+        volatile long categories = 0;
+
+        public Node(double x0, double y0, double x1, double y1, int level, long code) {
+            this.x0 = x0;
+            this.x1 = x1;
+            this.y0 = y0;
+            this.y1 = y1;
+
+            this.level = level;
+            this.code = code;
+        }
+
+        @Override
+        public Overlap getOverlap(BoundingShape area) {
+            return area.getOverlap(this.y0, this.x0, this.y1, this.x1);
+        }
+
+        @Override
+        public boolean isLeaf() {
+            return this.children == null;
+        }
+
+        @Override
+        public Node getChild(int i) {
+            return this.children[i];
+        }
+
+        @Override
+        public int getCount() {
+            return this.count;
+        }
+
+        @Override
+        public long getCategories() {
+            return this.categories;
+        }
+
+        @Override
+        public long getBestRank() {
+            return this.bestRank;
+        }
+
+        // see the order of the writes in append
+        @Override
+        public int size() {
+            return this.size;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T getObject(int i) {
+            return (T) this.objects[i];
+        }
+
+        @Override
+        public long getRank(int i) {
+            return this.ranks[i];
+        }
+
+        @Override
+        public String getKey(int i) {
+            String[] keys = this.keys;
+            return keys != null ? keys[i] : null;
+        }
+
+        @Override
+        public boolean contains(int i, BoundingShape area) {
+            return area.contains(getObject(i).getLatLon());
+        }
+
+        private Node getChild(double x, double y) {
+            Node[] children = this.children;
+            if (children == null) {
+                return null;
+            }
+
+            Node upperRight = children[3];
+            final boolean right = (x >= upperRight.x0);
+            final boolean top = (y >= upperRight.y0);
+            return children[(top ? 2 : 0) + (right ? 1 : 0)];
+        }
+
+        // lock shared by all nodes of the subtree below this node if it is at stripeLevel
+        Object getLock() {
+            long h = this.code * 0x9E3779B97F4A7C15L;
+            return locks[(int) (h >>> 32) & (locks.length - 1)];
+        }
+
+        // descendant at the given level that contains (x, y), splits nodes as needed
+        public Node locate(double x, double y, int level) {
+            Node n = this;
+            while (n.level < level) {
+                if (n.children == null) {
+                    n.split();
+                }
+                n = n.getChild(x, y);
+            }
+
+            return n;
+        }
+
+        // Splits this node and moves its objects into the new children before
+        // they are published; nodes above stripeLevel have no objects and may
+        // be split by several writers at once, the children of the first one
+        // are used then. Nodes below are only split holding the stripe lock.
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        private void split() {
+            double yMid = (y0 + y1) / 2;
+            double xMid = (x0 + x1) / 2;
+
+            final int childLevel = level + 1;
+            final long childCode = code << 2;
+            Node[] children = (Node[]) new ConcurrentQuadTree.Node[] {
+                    new Node(x0, y0, xMid, yMid, childLevel, childCode),
+                    new Node(xMid, y0, x1, yMid, childLevel, childCode | 1),
+                    new Node(x0, yMid, xMid, y1, childLevel, childCode | 2),
+                    new Node(xMid, yMid, x1, y1, childLevel, childCode | 3) };
+
+            int n = this.size;
+            for (int i = 0; i < n; i++) {
+                T obj = getObject(i);
+                LatLon pos = obj.getLatLon();
+                int idx = (pos.lat >= yMid ? 2 : 0) + (pos.lon >= xMid ? 1 : 0);
+                children[idx].insert(obj, getRank(i), getKey(i), pos.lon, pos.lat);
+            }
+
+            if (CHILDREN.compareAndSet(this, null, children)) {
+                numNodes.addAndGet(4);
+            }
+        }
+
+        // updates the aggregates of this subtree for obj that will be added below it
+        void added(T obj, long rank) {
+            COUNT.incrementAndGet(this);
+            BEST_RANK.accumulateAndGet(this, rank, Math::min);
+            CATEGORIES.accumulateAndGet(this, obj.getCategories(), (a, b) -> a | b);
+        }
+
+        // Adds obj with the given rank and key (null for none) to the leaf for
+        // (x, y) below this node; the caller has to hold the stripe lock.
+        public void insert(T obj, long rank, String key, double x, double y) {
+            added(obj, rank);
+            if (this.children == null && this.size >= bucketCapacity && this.level < maxLevel) {
+                split();
+            }
+
+            Node child = getChild(x, y);
+            if (child != null) {
+                child.insert(obj, rank, key, x, y);
+            } else {
+                append(obj, rank, key);
+            }
+        }
+
+        private void append(T obj, long rank, String key) {
+            int n = this.size;
+            Object[] objects = this.objects;
+            long[] ranks = this.ranks;
+            String[] keys = this.keys;
+            if (n == objects.length) {
+                int capacity = Math.max(4, n * 2);
+                objects = Arrays.copyOf(objects, capacity);
+                ranks = Arrays.copyOf(ranks, capacity);
+                keys = (keys != null ? Arrays.copyOf(keys, capacity) : null);
+            }
+            if (keys == null && key != null) {
+                keys = new String[objects.length];
+            }
+            objects[n] = obj;
+            ranks[n] = rank;
+            if (keys != null) {
+                keys[n] = key;
+            }
+
+            this.objects = objects;
+            this.ranks = ranks;
+            this.keys = keys;
+            this.size = n + 1;
+        }
+    }
+
+    private final Node root;
+
+    public ConcurrentQuadTree(int maxLevel) {
+        this(maxLevel, 0);
+    }
+
+    // see QuadTree(maxLevel, bucketCapacity)
+    public ConcurrentQuadTree(int maxLevel, int bucketCapacity) {
+        this(maxLevel, bucketCapacity, Math.min(maxLevel, DEFAULT_STRIPE_LEVEL), 64);
+    }
+
+    // stripeLevel: level of the subtrees that share one lock; nodes above it
+    // are always split
+    // numStripes: number of locks, has to be a power of two
+    public ConcurrentQuadTree(int maxLevel, int bucketCapacity, int stripeLevel, int numStripes) {
+        if (stripeLevel > maxLevel || Integer.bitCount(numStripes) != 1) {
+            throw new IllegalArgumentException("invalid striping: level " + stripeLevel + ", stripes " + numStripes);
+        }
+
+        this.maxLevel = maxLevel;
+        this.bucketCapacity = bucketCapacity;
+        this.stripeLevel = stripeLevel;
+        this.locks = new Object[numStripes];
+        for (int i = 0; i < numStripes; i++) {
+            this.locks[i] = new Object();
+        }
+
+        this.root = new Node(-180, -90, +180, +90, 0, 0);
+        this.numNodes.set(1);
+    }
+
+    // Adds obj with a rank; smaller ranks are better and are returned
+    // first if there are too many results.
+    public void put(T obj, long rank) {
+        put(obj, rank, null);
+    }
+
+    // see QuadTree.put(T, String, String)
+    @Deprecated
+    public void put(T obj, String rank, String uid) {
+        put(obj, RankIndex.toRank(rank), RankIndex.toKey(rank));
+    }
+
+    private void put(T obj, long rank, String key) {
+        LatLon pos = obj.getLatLon();
+
+        // the lock is taken from the node at stripeLevel, and the leaf below
+        // it is only located while holding the lock
+        Node stripe = root.locate(pos.lon, pos.lat, this.stripeLevel);
+        for (Node n = root; n != stripe; n = n.getChild(pos.lon, pos.lat)) {
+            n.added(obj, rank);
+        }
+        synchronized (stripe.getLock()) {
+            stripe.insert(obj, rank, key, pos.lon, pos.lat);
+        }
+        numObjects.incrementAndGet();
+
+        sortedByRank.put(new RankEntry(rank, key, numPuts.getAndIncrement()), obj);
+    }
+
+    public SearchResult<T> linearSearch(SearchFilter filter, BoundingShape area) {
+        SearchResult<T> res = QuadTree.linearSearch(getAll(), filter, area);
+        return new SearchResult<T>(res.data, getTotalHits(filter, area, res.totalHits));
+    }
+
+    // Returns the best ranked objects in the area that match the filter,
+    // see QuadTree.rankedSearch.
+    public SearchResult<T> rankedSearch(SearchFilter filter, BoundingShape area) {
+        if (area == null) {
+            return linearSearch(filter, area);
+        }
+
+        int maxResults = filter.getMaxResults();
+        List<T> res = TreeSearch.rankedSearch(root, filter, area, maxResults, new QueryStats());
+        return new SearchResult<T>(res, getTotalHits(filter, area,
+                res.size() < maxResults ? res.size() : QuadTree.estimateTotalHits(getAll(), filter, area)));
+    }
+
+    // exact number of objects in area if the counts of the nodes can be used,
+    // otherwise the estimate; see QuadTree.getTotalHits
+    private int getTotalHits(SearchFilter filter, BoundingShape area, int estimate) {
+        return SearchFilter.matchesAll(filter) ? count(filter, area) : estimate;
+    }
+
+    // exact number of objects in area
+    public int count(BoundingShape area) {
+        return count(null, area);
+    }
+
+    // exact number of objects in area (null for everywhere) that match the filter
+    public int count(SearchFilter filter, BoundingShape area) {
+        return TreeSearch.count(root, filter, area);
+    }
+
+    // Returns the objects in area that match the filter: unordered if there
+    // are at most QuadTree.getMaxResults of them, otherwise the best ranked ones.
+    public SearchResult<T> getInArea(SearchFilter filter, BoundingShape area) {
+        int maxResults = QuadTree.getMaxResults(this.numObjects.get(), filter.getMaxResults());
+
+        SearchResult<T> res = null;
+        if (area != null) {
+            TreeSearch<T> search = new TreeSearch<T>(filter, area, maxResults, new QueryStats());
+            LatLon lowerLeft = area.getLowerLeft();
+            LatLon upperRight = area.getUpperRight();
+            if (lowerLeft.lon != upperRight.lon && lowerLeft.lat != upperRight.lat) {
+                search.search(root, false);
+            }
+            res = new SearchResult<T>(search.res, search.res.size());
+        }
+
+        // too many results, do a ranked search to get an ordered list of results
+        if (res == null || res.data.size() > maxResults) {
+            res = rankedSearch(filter, area);
+        }
+
+        return res;
+    }
+
+    public int getNumNodes() {
+        return this.numNodes.get();
+    }
+
+    public int getNumObjects() {
+        return this.numObjects.get();
+    }
+}
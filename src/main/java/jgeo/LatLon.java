@@ -3,6 +3,8 @@ package jgeo;
 import org.json.JSONObject;
 
 public class LatLon {
+    static final double EARTH_RADIUS_METERS = 6371000;
+
     public final double lat;
     public final double lon;
 
@@ -32,6 +34,18 @@ public class LatLon {
         return String.format("%1$." + precision + "f,%2$." + precision + "f", lat, lon);
     }
 
+    // Lower bound of the distance between two points with the given
+    // longitudes and with cos(lat) >= cosLat for both: by the haversine
+    // formula, sin^2(d / 2) >= cos(lat1) * cos(lat2) * sin^2(dLon / 2).
+    static double getMinDistance(double lon1, double lon2, double cosLat) {
+        double dLon = Math.abs(lon1 - lon2);
+        if (dLon > 180) {
+            dLon = 360 - dLon;
+        }
+        double h = cosLat * Math.sin(Math.toRadians(dLon) / 2);
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1, h));
+    }
+
     public double getDistanceInMeters(LatLon other) {
         return getDistanceInMeters(other.lat, other.lon);
     }
@@ -41,7 +55,7 @@ public class LatLon {
         double dLatDeg = lat - this.lat;
         double dLonDeg = lon - this.lon;
 
-        double radiusMeters = 6371000;
+        double radiusMeters = EARTH_RADIUS_METERS;
         double dLat = Math.toRadians(dLatDeg);
         double dLng = Math.toRadians(dLonDeg);
         double a = Math.sin(dLat / 2) * Math.sin(dLat / 2) +
@@ -5,8 +5,19 @@ import java.util.Comparator;
 import java.util.List;
 
 public interface LocationObject {
+    long ALL_CATEGORIES = -1L;
+
     LatLon getLatLon();
 
+    // Categories of this object as a bit set: bit i is set if the object is
+    // in category i (0 to 63). QuadTree keeps the union of the categories of
+    // every subtree to skip subtrees without categories a filter asks for,
+    // so they must not change while the object is stored. By default an
+    // object is in all categories and never skipped.
+    default long getCategories() {
+        return ALL_CATEGORIES;
+    }
+
     public static <T extends LocationObject> void sortByLat(List<T> data) {
         Collections.sort(data, new Comparator<LocationObject>() {
             @Override
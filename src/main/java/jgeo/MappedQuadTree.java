@@ -0,0 +1,273 @@
+package jgeo;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongFunction;
+
+import jgeo.BoundingShape.Overlap;
+
+// Read-only QuadTree that runs its searches directly on a memory-mapped
+// snapshot file written by QuadTree.writeSnapshot, so opening it does not
+// need to rebuild or deserialize the tree and several processes share the
+// pages of the file.
+//
+// The objects are stored by id only; ids are resolved to objects with the
+// resolver passed to open(), and only for objects in the search area.
+//
+// File layout (little endian):
+//   header:  magic, version, numNodes, numObjects (4 ints)
+//   nodes:   in pre-order; x0, y0, x1, y1 (doubles), count, next, start, end (ints)
+//            where next is the index of the node after the subtree and
+//            [start, end) the objects of the subtree
+//   objects: in the order of the nodes; lat, lon (doubles), id (long)
+//   byRank:  object indices ordered by rank (ints)
+public class MappedQuadTree<T extends LocationObject> {
+    static final int MAGIC = 0x4A475154; // "JGQT"
+    static final int VERSION = 2;
+
+    private static final int HEADER_SIZE = 16;
+    private static final int NODE_SIZE = 48;
+    private static final int OBJECT_SIZE = 24;
+
+    private final MappedByteBuffer buffer;
+    private final LongFunction<T> resolver;
+    private final int numNodes;
+    private final int numObjects;
+    private final int objectsOffset;
+    private final int byRankOffset;
+
+    private MappedQuadTree(MappedByteBuffer buffer, LongFunction<T> resolver) throws IOException {
+        this.buffer = buffer;
+        this.resolver = resolver;
+
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("not a quad tree snapshot");
+        } else if (buffer.getInt(4) != VERSION) {
+            throw new IOException("unsupported quad tree snapshot version " + buffer.getInt(4));
+        }
+
+        this.numNodes = buffer.getInt(8);
+        this.numObjects = buffer.getInt(12);
+        this.objectsOffset = HEADER_SIZE + this.numNodes * NODE_SIZE;
+        this.byRankOffset = this.objectsOffset + this.numObjects * OBJECT_SIZE;
+        if (buffer.capacity() != this.byRankOffset + this.numObjects * 4) {
+            throw new IOException("truncated quad tree snapshot");
+        }
+    }
+
+    // resolver: returns the object for an id that was written with the snapshot
+    public static <T extends LocationObject> MappedQuadTree<T> open(Path file, LongFunction<T> resolver)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return new MappedQuadTree<T>(buffer, resolver);
+        }
+    }
+
+    // Writes a snapshot, see SnapshotFile.write; the nodes are given in
+    // pre-order as described above, the objects by their coordinates and ids
+    // and their order by rank by byRank.
+    static void write(Path file, double[] nodeBounds, int[] nodeInts, int numNodes,
+            double[] lats, double[] lons, long[] ids, int[] byRank) throws IOException {
+        int numObjects = lats.length;
+        long size = HEADER_SIZE + (long) numNodes * NODE_SIZE + (long) numObjects * (OBJECT_SIZE + 4);
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("quad tree too large for a snapshot: " + size + " bytes");
+        }
+
+        SnapshotFile.write(file, size, buffer -> {
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(numNodes).putInt(numObjects);
+            for (int i = 0; i < numNodes; i++) {
+                for (int j = 0; j < 4; j++) {
+                    buffer.putDouble(nodeBounds[4 * i + j]);
+                }
+                for (int j = 0; j < 4; j++) {
+                    buffer.putInt(nodeInts[4 * i + j]);
+                }
+            }
+            for (int i = 0; i < numObjects; i++) {
+                buffer.putDouble(lats[i]).putDouble(lons[i]).putLong(ids[i]);
+            }
+            for (int i = 0; i < numObjects; i++) {
+                buffer.putInt(byRank[i]);
+            }
+        });
+    }
+
+    public int size() {
+        return this.numObjects;
+    }
+
+    public int getNumNodes() {
+        return this.numNodes;
+    }
+
+    private double nodeBound(int node, int j) {
+        return this.buffer.getDouble(HEADER_SIZE + node * NODE_SIZE + 8 * j);
+    }
+
+    private int nodeInt(int node, int j) {
+        return this.buffer.getInt(HEADER_SIZE + node * NODE_SIZE + 32 + 4 * j);
+    }
+
+    private double lat(int obj) {
+        return this.buffer.getDouble(this.objectsOffset + obj * OBJECT_SIZE);
+    }
+
+    private double lon(int obj) {
+        return this.buffer.getDouble(this.objectsOffset + obj * OBJECT_SIZE + 8);
+    }
+
+    private long id(int obj) {
+        return this.buffer.getLong(this.objectsOffset + obj * OBJECT_SIZE + 16);
+    }
+
+    private T resolve(int obj) {
+        return this.resolver.apply(id(obj));
+    }
+
+    // node at an index of the pre-order for the searches of TreeSearch; the
+    // children of a node follow it, each after the subtree of the one before
+    private class NodeView implements SearchNode<T> {
+        private final int idx;
+
+        NodeView(int idx) {
+            this.idx = idx;
+        }
+
+        @Override
+        public Overlap getOverlap(BoundingShape area) {
+            return area.getOverlap(nodeBound(this.idx, 1), nodeBound(this.idx, 0),
+                    nodeBound(this.idx, 3), nodeBound(this.idx, 2));
+        }
+
+        @Override
+        public boolean isLeaf() {
+            return nodeInt(this.idx, 1) == this.idx + 1;
+        }
+
+        @Override
+        public SearchNode<T> getChild(int i) {
+            int next = nodeInt(this.idx, 1);
+            int child = this.idx + 1;
+            for (int j = 0; j < i && child < next; j++) {
+                child = nodeInt(child, 1);
+            }
+            return child < next ? new NodeView(child) : null;
+        }
+
+        @Override
+        public int getCount() {
+            return nodeInt(this.idx, 0);
+        }
+
+        // the snapshot has no categories, so only the objects are checked
+        @Override
+        public long getCategories() {
+            return LocationObject.ALL_CATEGORIES;
+        }
+
+        @Override
+        public int size() {
+            return nodeInt(this.idx, 3) - nodeInt(this.idx, 2);
+        }
+
+        @Override
+        public T getObject(int i) {
+            return resolve(nodeInt(this.idx, 2) + i);
+        }
+
+        @Override
+        public boolean contains(int i, BoundingShape area) {
+            int obj = nodeInt(this.idx, 2) + i;
+            return area.contains(lat(obj), lon(obj));
+        }
+    }
+
+    public SearchResult<T> linearSearch(SearchFilter filter, BoundingShape area) {
+        List<T> res = new ArrayList<T>();
+        int maxResults = filter.getMaxResults();
+        int tested = 0;
+        for (int i = 0; i < this.numObjects && res.size() < maxResults; i++) {
+            tested++;
+            collect(byRank(i), filter, area, res);
+        }
+
+        // exact if the node counts can be used, otherwise estimated like
+        // QuadTree.linearSearch, as counting would resolve every object
+        int totalHits;
+        if (SearchFilter.matchesAll(filter)) {
+            totalHits = count(filter, area);
+        } else if (tested == this.numObjects) {
+            totalHits = res.size();
+        } else if (tested < 100) {
+            totalHits = estimateTotalHits(filter, area);
+        } else {
+            totalHits = (int) (res.size() / (double) tested * this.numObjects);
+        }
+        return new SearchResult<T>(res, totalHits);
+    }
+
+    private int byRank(int i) {
+        return this.buffer.getInt(this.byRankOffset + 4 * i);
+    }
+
+    // adds obj to res if it is in area and matches the filter
+    private void collect(int obj, SearchFilter filter, BoundingShape area, List<T> res) {
+        if (area == null || area.contains(lat(obj), lon(obj))) {
+            T t = resolve(obj);
+            if (SearchFilter.hasCategory(filter, t) && filter.matches(t)) {
+                res.add(t);
+            }
+        }
+    }
+
+    // estimates the number of matches from the 100 best ranked objects
+    private int estimateTotalHits(SearchFilter filter, BoundingShape area) {
+        List<T> matched = new ArrayList<T>();
+        int tested = Math.min(100, this.numObjects);
+        for (int i = 0; i < tested; i++) {
+            collect(byRank(i), filter, area, matched);
+        }
+        return (int) (matched.size() / (double) tested * this.numObjects);
+    }
+
+    public SearchResult<T> getInArea(SearchFilter filter, BoundingShape area) {
+        int maxResults = QuadTree.getMaxResults(this.numObjects, filter.getMaxResults());
+
+        SearchResult<T> res = null;
+        if (area != null) {
+            TreeSearch<T> search = new TreeSearch<T>(filter, area, maxResults, new QueryStats());
+            LatLon lowerLeft = area.getLowerLeft();
+            LatLon upperRight = area.getUpperRight();
+            if (lowerLeft.lon != upperRight.lon && lowerLeft.lat != upperRight.lat) {
+                search.search(new NodeView(0), false);
+            }
+            res = new SearchResult<T>(search.res, search.res.size());
+        }
+
+        // too many results, do a linear search to get an ordered list of results
+        if (res == null || res.data.size() > maxResults) {
+            res = linearSearch(filter, area);
+        }
+
+        return res;
+    }
+
+    // exact number of objects in area
+    public int count(BoundingShape area) {
+        return count(null, area);
+    }
+
+    // exact number of objects in area (null for everywhere) that match the filter
+    public int count(SearchFilter filter, BoundingShape area) {
+        return TreeSearch.count(new NodeView(0), filter, area);
+    }
+}
@@ -0,0 +1,243 @@
+package jgeo;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongFunction;
+
+/**
+ * Read-only SpatialHash that runs its searches directly on a memory-mapped
+ * snapshot file written by SpatialHash.writeSnapshot.
+ *
+ * Values are stored by id only and resolved with the resolver passed to
+ * open(). Instead of the lookup tables of SpatialHash, rows and values
+ * within a row are found by binary search over the mapped columns, and the
+ * closest value within a row is searched exactly.
+ *
+ * File layout (little endian):
+ *   header: magic, version, numRows, numValues (4 ints)
+ *   rows:   latMin, latMax (doubles), start, end (ints), sorted by latitude
+ *   values: lat, lon (doubles), id (long), by row and sorted by longitude
+ *           within a row
+ */
+public class MappedSpatialHash<E extends LocationObject> {
+	static final int MAGIC = 0x4A475348;	// "JGSH"
+	static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 16;
+	private static final int ROW_SIZE = 24;
+	private static final int VALUE_SIZE = 24;
+
+	private final MappedByteBuffer buffer;
+	private final LongFunction<E> resolver;
+	private final int numRows;
+	private final int numValues;
+	private final int valuesOffset;
+
+	private MappedSpatialHash(MappedByteBuffer buffer, LongFunction<E> resolver) throws IOException {
+		this.buffer = buffer;
+		this.resolver = resolver;
+
+		if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+			throw new IOException("not a spatial hash snapshot");
+		} else if (buffer.getInt(4) != VERSION) {
+			throw new IOException("unsupported spatial hash snapshot version " + buffer.getInt(4));
+		}
+
+		this.numRows = buffer.getInt(8);
+		this.numValues = buffer.getInt(12);
+		this.valuesOffset = HEADER_SIZE + this.numRows * ROW_SIZE;
+		if (buffer.capacity() != this.valuesOffset + this.numValues * VALUE_SIZE) {
+			throw new IOException("truncated spatial hash snapshot");
+		}
+	}
+
+	// resolver: returns the value for an id that was written with the snapshot
+	public static <E extends LocationObject> MappedSpatialHash<E> open(Path file, LongFunction<E> resolver)
+			throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			return new MappedSpatialHash<E>(buffer, resolver);
+		}
+	}
+
+	// Writes a snapshot, see SnapshotFile.write; rowBounds holds latMin and
+	// latMax and rowRanges start and end of every row.
+	static void write(Path file, double[] rowBounds, int[] rowRanges,
+			double[] lats, double[] lons, long[] ids) throws IOException {
+		int numRows = rowRanges.length / 2;
+		int numValues = lats.length;
+		long size = HEADER_SIZE + (long) numRows * ROW_SIZE + (long) numValues * VALUE_SIZE;
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("spatial hash too large for a snapshot: " + size + " bytes");
+		}
+
+		SnapshotFile.write(file, size, buffer -> {
+			buffer.putInt(MAGIC).putInt(VERSION).putInt(numRows).putInt(numValues);
+			for (int r = 0; r < numRows; r++) {
+				buffer.putDouble(rowBounds[2 * r]).putDouble(rowBounds[2 * r + 1]);
+				buffer.putInt(rowRanges[2 * r]).putInt(rowRanges[2 * r + 1]);
+			}
+			for (int i = 0; i < numValues; i++) {
+				buffer.putDouble(lats[i]).putDouble(lons[i]).putLong(ids[i]);
+			}
+		});
+	}
+
+	public int size() {
+		return this.numValues;
+	}
+
+	private double rowLatMin(int row) {
+		return this.buffer.getDouble(HEADER_SIZE + row * ROW_SIZE);
+	}
+
+	private double rowLatMax(int row) {
+		return this.buffer.getDouble(HEADER_SIZE + row * ROW_SIZE + 8);
+	}
+
+	private int rowStart(int row) {
+		return this.buffer.getInt(HEADER_SIZE + row * ROW_SIZE + 16);
+	}
+
+	private int rowEnd(int row) {
+		return this.buffer.getInt(HEADER_SIZE + row * ROW_SIZE + 20);
+	}
+
+	private double lat(int idx) {
+		return this.buffer.getDouble(this.valuesOffset + idx * VALUE_SIZE);
+	}
+
+	private double lon(int idx) {
+		return this.buffer.getDouble(this.valuesOffset + idx * VALUE_SIZE + 8);
+	}
+
+	private E resolve(int idx) {
+		return this.resolver.apply(this.buffer.getLong(this.valuesOffset + idx * VALUE_SIZE + 16));
+	}
+
+	// first row with latMax >= lat
+	private int firstRow(double lat) {
+		int lo = 0;
+		int hi = this.numRows;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (rowLatMax(mid) < lat) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	// first value in [from, to) with lon >= value
+	private int firstValue(int from, int to, double value) {
+		int lo = from;
+		int hi = to;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (lon(mid) < value) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	public List<E> get(BoundingShape bb) {
+		LatLon ll = bb.getLowerLeft();
+		LatLon ur = bb.getUpperRight();
+
+		List<E> res = new ArrayList<>();
+		for (int r = firstRow(ll.lat); r < this.numRows && rowLatMin(r) <= ur.lat; r++) {
+			int start = rowStart(r);
+			int end = rowEnd(r);
+			if (ll.lon <= ur.lon) {
+				get(res, bb, firstValue(start, end, ll.lon), end, ur.lon);
+			} else {
+				// across +/-180 deg.
+				get(res, bb, firstValue(start, end, ll.lon), end, 180);
+				get(res, bb, start, end, ur.lon);
+			}
+		}
+		return res;
+	}
+
+	private void get(List<E> res, BoundingShape bb, int from, int to, double lonMax) {
+		for (int i = from; i < to && lon(i) <= lonMax; i++) {
+			if (bb.contains(lat(i), lon(i))) {
+				res.add(resolve(i));
+			}
+		}
+	}
+
+	// get the value closest to at, see SpatialHash.get(LatLon)
+	public E get(LatLon at) {
+		if (this.numRows == 0) {
+			return null;
+		}
+
+		double latToMeter = at.getDistanceInMeters(new LatLon(at.lat + 1, at.lon));
+		int rowIdx = Math.min(firstRow(at.lat), this.numRows - 1);
+
+		// closest[0]: index of the closest value, closest[1]: its distance
+		double[] closest = new double[] { -1, Double.MAX_VALUE };
+		getClosest(rowIdx, at, closest);
+
+		// look for closer values in the neighbor rows until they can't be any closer
+		for (int r = rowIdx + 1; r < this.numRows && (rowLatMin(r) - at.lat) * latToMeter < closest[1]; r++) {
+			getClosest(r, at, closest);
+		}
+		for (int r = rowIdx - 1; r >= 0 && (at.lat - rowLatMax(r)) * latToMeter < closest[1]; r--) {
+			getClosest(r, at, closest);
+		}
+
+		return resolve((int) closest[0]);
+	}
+
+	// Updates closest if row has a value that is closer to at. Starting at
+	// the longitude of at, the values are checked to both sides until the
+	// longitude difference alone makes them farther away.
+	private void getClosest(int row, LatLon at, double[] closest) {
+		int start = rowStart(row);
+		int end = rowEnd(row);
+		int pos = firstValue(start, end, at.lon);
+
+		// all points of the row and at are at least this close to the equator
+		double cosLat = Math.cos(Math.toRadians(Math.max(Math.abs(at.lat),
+				Math.max(Math.abs(rowLatMin(row)), Math.abs(rowLatMax(row))))));
+
+		int right = pos;
+		while (right < end && LatLon.getMinDistance(at.lon, lon(right), cosLat) < closest[1]) {
+			update(right++, at, closest);
+		}
+		int left = pos - 1;
+		while (left >= start && LatLon.getMinDistance(at.lon, lon(left), cosLat) < closest[1]) {
+			update(left--, at, closest);
+		}
+
+		// values at the other end of the row may be close across +/-180 deg.
+		for (int i = end - 1; i >= right && LatLon.getMinDistance(at.lon, lon(i), cosLat) < closest[1]; i--) {
+			update(i, at, closest);
+		}
+		for (int i = start; i <= left && LatLon.getMinDistance(at.lon, lon(i), cosLat) < closest[1]; i++) {
+			update(i, at, closest);
+		}
+	}
+
+	private void update(int idx, LatLon at, double[] closest) {
+		double dist = at.getDistanceInMeters(lat(idx), lon(idx));
+		if (dist < closest[1]) {
+			closest[0] = idx;
+			closest[1] = dist;
+		}
+	}
+}
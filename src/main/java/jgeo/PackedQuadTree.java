@@ -0,0 +1,343 @@
+package jgeo;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+import jgeo.BoundingShape.Overlap;
+
+// Static quad tree that is bulk-loaded from a list of objects.
+//
+// The objects are sorted by their Z-order (Morton) code at maxLevel so that
+// every node of the tree covers a contiguous range of the sorted arrays. The
+// nodes are stored in pre-order in flat arrays: besides its code prefix and
+// level, a node only stores its object range, the categories of its objects
+// and the index of the next node after its subtree, so no node or list
+// objects are allocated per tree node.
+//
+// The data passed to the constructor is expected to be sorted by rank (best
+// first); this order is used by the linear search if there are too many
+// results for the tree search.
+public class PackedQuadTree<T extends LocationObject> {
+    // nodes with no more objects are not split any further
+    private static final int LEAF_SIZE = 16;
+
+    private final int maxLevel;
+
+    // objects in input (rank) order
+    private final Object[] byRank;
+
+    // objects and their coordinates in Morton order
+    private final Object[] objects;
+    private final double[] lats;
+    private final double[] lons;
+
+    // nodes in pre-order
+    private int numNodes = 0;
+    private long[] nodeCode = new long[64];
+    private byte[] nodeLevel = new byte[64];
+    private int[] nodeStart = new int[64];
+    private int[] nodeEnd = new int[64];
+    private int[] nodeNext = new int[64];
+
+    // union of the categories of the objects of a node
+    private long[] nodeCategories = new long[64];
+
+    public PackedQuadTree(List<T> data, int maxLevel) {
+        if (maxLevel < 1 || maxLevel > 30) {
+            throw new IllegalArgumentException("maxLevel has to be in [1, 30]: " + maxLevel);
+        }
+
+        this.maxLevel = maxLevel;
+        this.byRank = data.toArray();
+
+        int n = this.byRank.length;
+        long[] codes = new long[n];
+        int[] perm = new int[n];
+        for (int i = 0; i < n; i++) {
+            LatLon p = ((LocationObject) this.byRank[i]).getLatLon();
+            codes[i] = mortonCode(p.lon, p.lat, maxLevel);
+            perm[i] = i;
+        }
+        sort(codes, perm, 0, n - 1);
+
+        this.objects = new Object[n];
+        this.lats = new double[n];
+        this.lons = new double[n];
+        for (int i = 0; i < n; i++) {
+            Object o = this.byRank[perm[i]];
+            LatLon p = ((LocationObject) o).getLatLon();
+            this.objects[i] = o;
+            this.lats[i] = p.lat;
+            this.lons[i] = p.lon;
+        }
+
+        if (n > 0) {
+            build(codes, 0, 0, 0, n);
+        }
+        trimNodes();
+    }
+
+    private static int toCell(double value, double min, double range, int level) {
+        int cells = 1 << level;
+        int cell = (int) ((value - min) / range * cells);
+        return cell < 0 ? 0 : (cell >= cells ? cells - 1 : cell);
+    }
+
+    // interleave the cell indices: bit 2i is bit i of x, bit 2i+1 is bit i of y
+    static long mortonCode(double x, double y, int level) {
+        return spread(toCell(x, -180, 360, level)) | (spread(toCell(y, -90, 180, level)) << 1);
+    }
+
+    private static long spread(int v) {
+        long x = v & 0xFFFFFFFFL;
+        x = (x | (x << 16)) & 0x0000FFFF0000FFFFL;
+        x = (x | (x << 8)) & 0x00FF00FF00FF00FFL;
+        x = (x | (x << 4)) & 0x0F0F0F0F0F0F0F0FL;
+        x = (x | (x << 2)) & 0x3333333333333333L;
+        x = (x | (x << 1)) & 0x5555555555555555L;
+        return x;
+    }
+
+    private static int compact(long x) {
+        x &= 0x5555555555555555L;
+        x = (x | (x >>> 1)) & 0x3333333333333333L;
+        x = (x | (x >>> 2)) & 0x0F0F0F0F0F0F0F0FL;
+        x = (x | (x >>> 4)) & 0x00FF00FF00FF00FFL;
+        x = (x | (x >>> 8)) & 0x0000FFFF0000FFFFL;
+        x = (x | (x >>> 16)) & 0x00000000FFFFFFFFL;
+        return (int) x;
+    }
+
+    // sort codes and apply the same permutation to perm
+    private static void sort(long[] codes, int[] perm, int lo, int hi) {
+        while (hi - lo > 16) {
+            int mid = (lo + hi) >>> 1;
+            long pivot = median(codes[lo], codes[mid], codes[hi]);
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (codes[i] < pivot) {
+                    i++;
+                }
+                while (codes[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(codes, perm, i++, j--);
+                }
+            }
+
+            // recurse into the smaller part to bound the stack depth
+            if (j - lo < hi - i) {
+                sort(codes, perm, lo, j);
+                lo = i;
+            } else {
+                sort(codes, perm, i, hi);
+                hi = j;
+            }
+        }
+
+        for (int i = lo + 1; i <= hi; i++) {
+            for (int j = i; j > lo && codes[j - 1] > codes[j]; j--) {
+                swap(codes, perm, j - 1, j);
+            }
+        }
+    }
+
+    private static long median(long a, long b, long c) {
+        return Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+    }
+
+    private static void swap(long[] codes, int[] perm, int i, int j) {
+        long c = codes[i];
+        codes[i] = codes[j];
+        codes[j] = c;
+        int p = perm[i];
+        perm[i] = perm[j];
+        perm[j] = p;
+    }
+
+    private int build(long[] codes, long prefix, int level, int start, int end) {
+        int idx = addNode(prefix, level, start, end);
+
+        long categories = 0;
+        if (end - start > LEAF_SIZE && level < this.maxLevel) {
+            int shift = 2 * (this.maxLevel - level - 1);
+            int childStart = start;
+            for (int q = 0; q < 4 && childStart < end; q++) {
+                // first object that does not belong to quadrant q any more
+                long limit = ((prefix << 2) | q) + 1;
+                int childEnd = upperBound(codes, childStart, end, shift, limit);
+                if (childEnd > childStart) {
+                    int child = build(codes, (prefix << 2) | q, level + 1, childStart, childEnd);
+                    categories |= this.nodeCategories[child];
+                }
+                childStart = childEnd;
+            }
+        } else {
+            for (int i = start; i < end; i++) {
+                categories |= ((LocationObject) this.objects[i]).getCategories();
+            }
+        }
+
+        this.nodeCategories[idx] = categories;
+        this.nodeNext[idx] = this.numNodes;
+        return idx;
+    }
+
+    // first index in [from, to) with (codes[i] >>> shift) >= limit
+    private static int upperBound(long[] codes, int from, int to, int shift, long limit) {
+        int lo = from;
+        int hi = to;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if ((codes[mid] >>> shift) < limit) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private int addNode(long prefix, int level, int start, int end) {
+        if (this.numNodes == this.nodeCode.length) {
+            int capacity = this.numNodes * 2;
+            this.nodeCode = Arrays.copyOf(this.nodeCode, capacity);
+            this.nodeLevel = Arrays.copyOf(this.nodeLevel, capacity);
+            this.nodeStart = Arrays.copyOf(this.nodeStart, capacity);
+            this.nodeEnd = Arrays.copyOf(this.nodeEnd, capacity);
+            this.nodeNext = Arrays.copyOf(this.nodeNext, capacity);
+            this.nodeCategories = Arrays.copyOf(this.nodeCategories, capacity);
+        }
+
+        int idx = this.numNodes++;
+        this.nodeCode[idx] = prefix;
+        this.nodeLevel[idx] = (byte) level;
+        this.nodeStart[idx] = start;
+        this.nodeEnd[idx] = end;
+        return idx;
+    }
+
+    private void trimNodes() {
+        this.nodeCode = Arrays.copyOf(this.nodeCode, this.numNodes);
+        this.nodeLevel = Arrays.copyOf(this.nodeLevel, this.numNodes);
+        this.nodeStart = Arrays.copyOf(this.nodeStart, this.numNodes);
+        this.nodeEnd = Arrays.copyOf(this.nodeEnd, this.numNodes);
+        this.nodeNext = Arrays.copyOf(this.nodeNext, this.numNodes);
+        this.nodeCategories = Arrays.copyOf(this.nodeCategories, this.numNodes);
+    }
+
+    public int size() {
+        return this.objects.length;
+    }
+
+    public int getNumNodes() {
+        return this.numNodes;
+    }
+
+    public List<T> getAll() {
+        return new AbstractList<T>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public T get(int index) {
+                return (T) byRank[index];
+            }
+
+            @Override
+            public int size() {
+                return byRank.length;
+            }
+        };
+    }
+
+    public SearchResult<T> linearSearch(SearchFilter filter, BoundingShape area) {
+        return QuadTree.linearSearch(getAll(), filter, area);
+    }
+
+    public SearchResult<T> getInArea(SearchFilter filter, BoundingShape area) {
+        int maxResults = QuadTree.getMaxResults(size(), filter.getMaxResults());
+
+        SearchResult<T> res = null;
+        if (area != null) {
+            TreeSearch<T> search = new TreeSearch<T>(filter, area, maxResults, new QueryStats());
+            LatLon lowerLeft = area.getLowerLeft();
+            LatLon upperRight = area.getUpperRight();
+            if (this.numNodes > 0 && lowerLeft.lon != upperRight.lon && lowerLeft.lat != upperRight.lat) {
+                search.search(new NodeView(0), false);
+            }
+            res = new SearchResult<T>(search.res, search.res.size());
+        }
+
+        // too many results, do a linear search to get an ordered list of results
+        if (res == null || res.data.size() > maxResults) {
+            res = linearSearch(filter, area);
+        }
+
+        return res;
+    }
+
+    // node at an index of the pre-order for the searches of TreeSearch; the
+    // children of a node follow it, each after the subtree of the one before
+    private class NodeView implements SearchNode<T> {
+        private final int idx;
+
+        NodeView(int idx) {
+            this.idx = idx;
+        }
+
+        @Override
+        public Overlap getOverlap(BoundingShape area) {
+            int level = nodeLevel[this.idx];
+            long code = nodeCode[this.idx];
+            double w = 360.0 / (1 << level);
+            double h = 180.0 / (1 << level);
+            double x0 = -180 + compact(code) * w;
+            double y0 = -90 + compact(code >>> 1) * h;
+            return area.getOverlap(y0, x0, y0 + h, x0 + w);
+        }
+
+        @Override
+        public boolean isLeaf() {
+            return nodeNext[this.idx] == this.idx + 1;
+        }
+
+        @Override
+        public SearchNode<T> getChild(int i) {
+            int next = nodeNext[this.idx];
+            int child = this.idx + 1;
+            for (int j = 0; j < i && child < next; j++) {
+                child = nodeNext[child];
+            }
+            return child < next ? new NodeView(child) : null;
+        }
+
+        @Override
+        public int getCount() {
+            return nodeEnd[this.idx] - nodeStart[this.idx];
+        }
+
+        @Override
+        public long getCategories() {
+            return nodeCategories[this.idx];
+        }
+
+        @Override
+        public int size() {
+            return getCount();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T getObject(int i) {
+            return (T) objects[nodeStart[this.idx] + i];
+        }
+
+        @Override
+        public boolean contains(int i, BoundingShape area) {
+            int obj = nodeStart[this.idx] + i;
+            return area.contains(lats[obj], lons[obj]);
+        }
+    }
+}
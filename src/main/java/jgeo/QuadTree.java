@@ -1,33 +1,89 @@
 package jgeo;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import jgeo.BoundingShape.Overlap;
+import jgeo.QueryStats.Plan;
 
 public class QuadTree<T extends LocationObject> {
+    // subtrees with fewer objects are searched by a single parallel task
+    private static final int PARALLEL_THRESHOLD = 8192;
+
+    // subtrees with at most this many objects are not visited to estimate
+    // the number of objects in an area
+    private static final int ESTIMATE_THRESHOLD = 64;
+
     private final int maxLevel;
+
+    // leaves are split once they have more objects (up to maxLevel);
+    // 0 means objects are always stored at maxLevel
+    private final int bucketCapacity;
+
+    // leaves store the coordinates of their objects in primitive columns
+    private final boolean coordinateColumns;
     private int numNodes = 0;
     private int numObjects = 0;
 
     // sorted by rank for linear search if too many results
-    private final Map<String, T> sortedByRank = new HashMap<String, T>();
+    private final RankIndex<T> sortedByRank = new RankIndex<T>();
 
     public Collection<T> getAll() {
-        return this.sortedByRank.values();
+        return Collections.unmodifiableCollection(this.sortedByRank);
     }
 
-    class Node {
+    class Node implements SearchNode.Ranked<T> {
 
         private final int level;
         private final double x0, y0, x1, y1;
-        private final List<T> objects = new ArrayList<T>();
 
-        private Node upperLeftNode = null;
-        private Node lowerLeftNode = null;
-        private Node upperRightNode = null;
-        private Node lowerRightNode = null;
+        // objects of a leaf and their ranks, null once the node is split
+        private List<T> objects = new ArrayList<T>();
+        private long[] ranks = new long[4];
+
+        // keys that order objects of a leaf with the same rank (see RankIndex),
+        // null until an object with a key is added
+        private String[] keys = null;
+
+        // coordinates of the objects of a leaf as they were put if the tree
+        // uses coordinate columns, so leaves can be scanned without loading
+        // the objects; null otherwise
+        private double[] lats = coordinateColumns ? new double[4] : null;
+        private double[] lons = coordinateColumns ? new double[4] : null;
+
+        // best (smallest) rank, an object with that rank and number of objects in this subtree
+        private long bestRank = Long.MAX_VALUE;
+        private T bestObject = null;
+        private int count = 0;
+
+        // sums of the coordinates of the objects in this subtree
+        private double sumLat = 0;
+        private double sumLon = 0;
+
+        // union of the categories of the objects in this subtree
+        private long categories = 0;
+
+        // lowerLeft, lowerRight, upperLeft, upperRight or null if this node is a leaf;
+        // children are only created for quadrants that contain objects
+        private Node[] children = null;
 
         public Node(double x0, double y0, double x1, double y1, int level) {
             this.x0 = x0;
@@ -39,164 +95,493 @@ public class QuadTree<T extends LocationObject> {
             numNodes++;
         }
 
+        @Override
+        public boolean isLeaf() {
+            return this.children == null;
+        }
+
+        @Override
+        public Node getChild(int i) {
+            return this.children[i];
+        }
+
+        @Override
+        public int getCount() {
+            return this.count;
+        }
+
+        @Override
+        public long getCategories() {
+            return this.categories;
+        }
+
+        @Override
+        public long getBestRank() {
+            return this.bestRank;
+        }
+
+        @Override
+        public int size() {
+            return this.objects.size();
+        }
+
+        @Override
+        public T getObject(int i) {
+            return this.objects.get(i);
+        }
+
+        @Override
+        public long getRank(int i) {
+            return this.ranks[i];
+        }
+
+        @Override
+        public String getKey(int i) {
+            return this.keys != null ? this.keys[i] : null;
+        }
+
+        // whether the i-th object of this leaf is in area
+        @Override
+        public boolean contains(int i, BoundingShape area) {
+            if (this.lats != null) {
+                return area.contains(this.lats[i], this.lons[i]);
+            }
+            return area.contains(this.objects.get(i).getLatLon());
+        }
+
+        // distance of the i-th object of this leaf to at
+        private double getDistanceInMeters(int i, LatLon at) {
+            if (this.lats != null) {
+                return at.getDistanceInMeters(this.lats[i], this.lons[i]);
+            }
+            return this.objects.get(i).getLatLon().getDistanceInMeters(at);
+        }
+
+        // position of the i-th object of this leaf
+        private LatLon getLatLon(int i) {
+            if (this.lats != null) {
+                return new LatLon(this.lats[i], this.lons[i]);
+            }
+            return this.objects.get(i).getLatLon();
+        }
+
+        // true if some point of this node may be within meters of the rectangle
+        private boolean isNear(double latMin, double lonMin, double latMax, double lonMax, double meters) {
+            BoundingBox box = BoundingBox.around(this.y0, this.x0, this.y1, this.x1, meters);
+            return box.getOverlap(latMin, lonMin, latMax, lonMax) != Overlap.OUTSIDE;
+        }
+
+        private int getChildIndex(double x, double y) {
+            final double midX = (x0 + x1) / 2;
+            final double midY = (y0 + y1) / 2;
+            final boolean right = (x >= midX);
+            final boolean top = (y >= midY);
+            return (top ? 2 : 0) + (right ? 1 : 0);
+        }
+
         private Node getChild(double x, double y) {
             // has children?
-            if (upperRightNode == null) {
+            if (isLeaf()) {
                 return null;
             }
 
-            final double midX = upperRightNode.x0;
-            final double midY = upperRightNode.y0;
-            final boolean right = (x >= midX);
-            final boolean top = (y >= midY);
+            return children[getChildIndex(x, y)];
+        }
 
-            if (right && top) {
-                return upperRightNode;
-            } else if (right) {
-                return lowerRightNode;
-            } else if (top) {
-                return upperLeftNode;
-            } else {
-                return lowerLeftNode;
+        private Node getOrCreateChild(double x, double y) {
+            int idx = getChildIndex(x, y);
+            Node child = children[idx];
+            if (child == null) {
+                double xMid = (x0 + x1) / 2;
+                double yMid = (y0 + y1) / 2;
+                boolean right = (idx & 1) != 0;
+                boolean top = (idx & 2) != 0;
+                child = new Node(right ? xMid : x0, top ? yMid : y0,
+                        right ? x1 : xMid, top ? y1 : yMid, level + 1);
+                children[idx] = child;
             }
+
+            return child;
         }
 
-        public Node locate(double x, double y, boolean createIfNotExists) {
-            if (level == maxLevel) {
-                return this;
-            } else if (!createIfNotExists && this.upperLeftNode == null) {
-                return null;
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        private void split() {
+            List<T> objects = this.objects;
+            long[] ranks = this.ranks;
+            String[] keys = this.keys;
+            double[] lats = this.lats;
+            double[] lons = this.lons;
+            this.objects = null;
+            this.ranks = null;
+            this.keys = null;
+            this.lats = null;
+            this.lons = null;
+            this.children = (Node[]) new QuadTree.Node[4];
+
+            for (int i = 0; i < objects.size(); i++) {
+                T obj = objects.get(i);
+                String key = (keys != null ? keys[i] : null);
+                if (lats != null) {
+                    getOrCreateChild(lons[i], lats[i]).insert(obj, ranks[i], key, lons[i], lats[i]);
+                } else {
+                    LatLon pos = obj.getLatLon();
+                    getOrCreateChild(pos.lon, pos.lat).insert(obj, ranks[i], key, pos.lon, pos.lat);
+                }
+            }
+        }
+
+        // adds obj with the given rank and key (null for none) to the leaf for (x, y) below this node
+        public void insert(T obj, long rank, String key, double x, double y) {
+            this.count++;
+            this.sumLat += y;
+            this.sumLon += x;
+            this.categories |= obj.getCategories();
+            if (rank < this.bestRank) {
+                this.bestRank = rank;
+                this.bestObject = obj;
             }
 
-            if (this.upperLeftNode == null) {
+            if (!isLeaf()) {
+                getOrCreateChild(x, y).insert(obj, rank, key, x, y);
+                return;
+            }
+
+            int n = objects.size();
+            if (n == ranks.length) {
+                ranks = Arrays.copyOf(ranks, n * 2);
+                if (keys != null) {
+                    keys = Arrays.copyOf(keys, n * 2);
+                }
+                if (lats != null) {
+                    lats = Arrays.copyOf(lats, n * 2);
+                    lons = Arrays.copyOf(lons, n * 2);
+                }
+            }
+            ranks[n] = rank;
+            if (keys == null && key != null) {
+                keys = new String[ranks.length];
+            }
+            if (keys != null) {
+                keys[n] = key;
+            }
+            if (lats != null) {
+                lats[n] = y;
+                lons[n] = x;
+            }
+            objects.add(obj);
+
+            if (objects.size() > bucketCapacity && level < maxLevel) {
                 split();
             }
+        }
+
+        // Removes obj which is stored at (x, y) and stores its rank and key in removedRank[0]
+        // and removedKey[0]; subtrees that get empty are removed so that the tree only has
+        // nodes with objects.
+        public boolean remove(T obj, double x, double y, long[] removedRank, String[] removedKey) {
+            if (isLeaf()) {
+                for (int i = 0; i < objects.size(); i++) {
+                    if (objects.get(i) == obj) {
+                        // order within a leaf does not matter
+                        int last = objects.size() - 1;
+                        removedRank[0] = ranks[i];
+                        removedKey[0] = getKey(i);
+                        ranks[i] = ranks[last];
+                        if (keys != null) {
+                            keys[i] = keys[last];
+                            keys[last] = null;
+                        }
+                        if (lats != null) {
+                            lats[i] = lats[last];
+                            lons[i] = lons[last];
+                        }
+                        objects.set(i, objects.get(last));
+                        objects.remove(last);
+                        removed(x, y);
+                        updateAggregates();
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            int idx = getChildIndex(x, y);
+            Node child = children[idx];
+            if (child == null || !child.remove(obj, x, y, removedRank, removedKey)) {
+                return false;
+            }
+
+            removed(x, y);
+            if (child.count == 0) {
+                children[idx] = null;
+                numNodes--;
+
+                if (children[0] == null && children[1] == null
+                        && children[2] == null && children[3] == null) {
+                    this.children = null;
+                    this.objects = new ArrayList<T>();
+                    this.ranks = new long[4];
+                    if (coordinateColumns) {
+                        this.lats = new double[4];
+                        this.lons = new double[4];
+                    }
+                }
+            }
 
-            return getChild(x, y).locate(x, y, createIfNotExists);
+            updateAggregates();
+            return true;
         }
 
-        private void split() {
-            double yMid = (y0 + y1) / 2;
-            double xMid = (x0 + x1) / 2;
+        // updates the aggregates after the object at (x, y) was removed from this subtree
+        private void removed(double x, double y) {
+            this.count--;
+            if (this.count == 0) {
+                // avoid rounding errors to add up
+                this.sumLat = 0;
+                this.sumLon = 0;
+            } else {
+                this.sumLat -= y;
+                this.sumLon -= x;
+            }
+        }
 
-            final int childLevel = level + 1;
-            this.upperLeftNode = new Node(x0, yMid, xMid, y1, childLevel);
-            this.upperRightNode = new Node(xMid, yMid, x1, y1, childLevel);
-            this.lowerLeftNode = new Node(x0, y0, xMid, yMid, childLevel);
-            this.lowerRightNode = new Node(xMid, y0, x1, yMid, childLevel);
+        // updates best rank and categories after an object was removed from this subtree
+        private void updateAggregates() {
+            long best = Long.MAX_VALUE;
+            T bestObject = null;
+            long categories = 0;
+            if (isLeaf()) {
+                for (int i = 0; i < objects.size(); i++) {
+                    if (ranks[i] < best) {
+                        best = ranks[i];
+                        bestObject = objects.get(i);
+                    }
+                    categories |= objects.get(i).getCategories();
+                }
+            } else {
+                for (Node n : children) {
+                    if (n != null && n.bestRank < best) {
+                        best = n.bestRank;
+                        bestObject = n.bestObject;
+                    }
+                    categories |= (n != null ? n.categories : 0);
+                }
+            }
+            this.bestRank = best;
+            this.bestObject = bestObject;
+            this.categories = categories;
         }
 
-        public void add(T obj) {
-            objects.add(obj);
-            numObjects++;
+        // true if this subtree may have objects that match filter (null for all objects)
+        private boolean hasCategory(SearchFilter filter) {
+            return TreeSearch.hasCategory(this, filter);
         }
 
-        public boolean getObjectsInArea(
-                TreeSearchData search,
-                double x0, double x1,
-                double y0, double y1) {
-            Node nodeWithLowerLeft = getChild(x0, y0);
-            Node nodeWithUpperRight = getChild(x1, y1);
+        // Adds a cluster for every node at level (or leaf above it) in area,
+        // using only the aggregates of the nodes.
+        private void aggregate(List<Cluster<T>> res, BoundingShape area, int level, boolean inside) {
+            if (this.count == 0) {
+                return;
+            } else if (!inside) {
+                Overlap overlap = getOverlap(area);
+                if (overlap == Overlap.OUTSIDE) {
+                    return;
+                }
+                inside = (overlap == Overlap.INSIDE);
+            }
 
-            // If nodes are null we have to return the objects of this area
-            // as we are at max level (note: cannot be outside of this area as
-            // we only ask for valid coordinates);
-            // otherwise get sub nodes to check.
+            if (this.level == level || isLeaf()) {
+                BoundingBox cell = new BoundingBox(new LatLon(this.y0, this.x0), new LatLon(this.y1, this.x1));
+                LatLon centroid = new LatLon(this.sumLat / this.count, this.sumLon / this.count);
+                res.add(new Cluster<T>(cell, this.count, centroid, this.bestObject));
+                return;
+            }
 
-            if (nodeWithLowerLeft == null) {
-                for (T poi : this.objects) {
-                    if (search.filter.matches(poi)) {
-                        search.res.add(poi);
-                    }
+            for (Node n : this.children) {
+                if (n != null) {
+                    n.aggregate(res, area, level, inside);
                 }
+            }
+        }
 
-                //search.tested += this.objects.size()
-            } else if (nodeWithLowerLeft == nodeWithUpperRight) {
-                // entire search area in same node
-                nodeWithLowerLeft.getObjectsInArea(search, x0, x1, y0, y1);
-            } else if (nodeWithLowerLeft == this.lowerLeftNode
-                    && nodeWithUpperRight == this.upperRightNode) {
-                // area across all four nodes
-                if (getObjectsInIntersection(search, this.lowerLeftNode, x0, x1, y0, y1)
-                        && getObjectsInIntersection(search, this.upperLeftNode, x0, x1, y0, y1)
-                        && getObjectsInIntersection(search, this.lowerRightNode, x0, x1, y0, y1)
-                        && getObjectsInIntersection(search, this.upperRightNode, x0, x1, y0, y1)) {
-                    ;
+        @Override
+        public Overlap getOverlap(BoundingShape area) {
+            return area.getOverlap(this.y0, this.x0, this.y1, this.x1);
+        }
+
+        // Estimates the number of objects in area from the counts of the nodes;
+        // small subtrees that are partially in the area are counted by the
+        // share of their rectangle that is in the bounding box of the area.
+        private double estimateCount(BoundingShape area, boolean inside) {
+            if (!inside) {
+                Overlap overlap = getOverlap(area);
+                if (overlap == Overlap.OUTSIDE) {
+                    return 0;
                 }
+                inside = (overlap == Overlap.INSIDE);
+            }
+
+            if (inside) {
+                return this.count;
+            } else if (isLeaf() || this.count <= ESTIMATE_THRESHOLD) {
+                return this.count * getShareInBox(area.getLowerLeft(), area.getUpperRight());
+            }
+
+            double res = 0;
+            for (Node n : this.children) {
+                res += (n != null ? n.estimateCount(area, false) : 0);
+            }
+            return res;
+        }
+
+        // share of the rectangle of this node in the box between lowerLeft and upperRight
+        private double getShareInBox(LatLon lowerLeft, LatLon upperRight) {
+            double h = Math.min(this.y1, upperRight.lat) - Math.max(this.y0, lowerLeft.lat);
+            double w;
+            if (lowerLeft.lon <= upperRight.lon) {
+                w = Math.min(this.x1, upperRight.lon) - Math.max(this.x0, lowerLeft.lon);
             } else {
-                // area across two nodes
-                if (getObjectsInIntersection(search, nodeWithLowerLeft, x0, x1, y0, y1)
-                        && getObjectsInIntersection(search, nodeWithUpperRight, x0, x1, y0, y1)) {
-                    ;
+                // across +/-180 deg.
+                w = Math.max(0, Math.min(this.x1, upperRight.lon) - this.x0)
+                        + Math.max(0, this.x1 - Math.max(this.x0, lowerLeft.lon));
+            }
+            return Math.max(0, h) * Math.max(0, w) / ((this.y1 - this.y0) * (this.x1 - this.x0));
+        }
+
+        // Batch variant of getObjectsInArea: active holds the indices of the
+        // searches that still have to visit this node and inside whether this
+        // node is entirely in their area. Searches with too many results are
+        // not continued.
+        public void getObjectsInArea(List<TreeSearch<T>> searches, int[] active, boolean[] inside, int numActive) {
+            int[] act = new int[numActive];
+            boolean[] ins = new boolean[numActive];
+            int n = 0;
+            for (int i = 0; i < numActive; i++) {
+                TreeSearch<T> search = searches.get(active[i]);
+                if (search.res.size() > search.maxResults) {
+                    continue;
                 }
+
+                search.stats.nodesVisited++;
+                Overlap overlap = !hasCategory(search.filter) ? Overlap.OUTSIDE
+                        : inside[i] ? Overlap.INSIDE : getOverlap(search.area);
+                if (overlap != Overlap.OUTSIDE) {
+                    act[n] = active[i];
+                    ins[n] = (overlap == Overlap.INSIDE);
+                    n++;
+                }
+            }
+
+            if (n == 0) {
+                return;
+            } else if (!isLeaf()) {
+                for (Node c : this.children) {
+                    if (c != null) {
+                        c.getObjectsInArea(searches, act, ins, n);
+                    }
+                }
+                return;
+            }
+
+            for (int q = 0; q < n; q++) {
+                searches.get(act[q]).stats.leavesScanned++;
+                searches.get(act[q]).stats.objectsTested += this.objects.size();
             }
 
-            return search.res.size() <= search.maxResults;
+            // test each object against all searches while it is in the cache
+            for (int i = 0; i < this.objects.size(); i++) {
+                for (int q = 0; q < n; q++) {
+                    TreeSearch<T> search = searches.get(act[q]);
+                    T poi = this.objects.get(i);
+                    if ((ins[q] || contains(i, search.area)) && SearchFilter.hasCategory(search.filter, poi)) {
+                        search.stats.filterEvaluations++;
+                        if (search.filter.matches(poi)) {
+                            search.stats.filterMatches++;
+                            search.res.add(poi);
+                        }
+                    }
+                }
+            }
         }
 
-        private boolean getObjectsInIntersection(TreeSearchData search, QuadTree<T>.Node n, double x0, double x1,
-                double y0, double y1) {
-            double xMax = x1 > n.x1 ? n.x1 : x1;
-            double yMax = y1 > n.y1 ? n.y1 : y1;
-            double xMin = x0 < n.x0 ? n.x0 : x0;
-            double yMin = y0 < n.y0 ? n.y0 : y0;
+        // appends this subtree in pre-order to the snapshot arrays
+        private void writeTo(SnapshotData data) {
+            int idx = data.numNodes++;
+            data.nodeBounds[4 * idx] = this.x0;
+            data.nodeBounds[4 * idx + 1] = this.y0;
+            data.nodeBounds[4 * idx + 2] = this.x1;
+            data.nodeBounds[4 * idx + 3] = this.y1;
+            data.nodeInts[4 * idx] = this.count;
+            data.nodeInts[4 * idx + 2] = data.numObjects;
+
+            if (isLeaf()) {
+                for (int i = 0; i < this.objects.size(); i++) {
+                    T obj = this.objects.get(i);
+                    LatLon pos = obj.getLatLon();
+                    int o = data.numObjects++;
+                    data.lats[o] = pos.lat;
+                    data.lons[o] = pos.lon;
+                    data.ids[o] = data.idFunction.applyAsLong(obj);
+                    data.index.put(obj, o);
+                }
+            } else {
+                for (Node n : this.children) {
+                    if (n != null) {
+                        n.writeTo(data);
+                    }
+                }
+            }
 
-            return n.getObjectsInArea(search, xMin, xMax, yMin, yMax);
+            data.nodeInts[4 * idx + 1] = data.numNodes;
+            data.nodeInts[4 * idx + 3] = data.numObjects;
         }
 
         private int getNumNodes(int level) {
             if (this.level == level) {
                 return 1;
-            } else if (this.upperLeftNode == null) {
+            } else if (isLeaf()) {
                 return 0;
             }
 
-            return this.lowerLeftNode.getNumNodes(level)
-                    + this.lowerRightNode.getNumNodes(level)
-                    + this.upperLeftNode.getNumNodes(level)
-                    + this.upperRightNode.getNumNodes(level);
+            int res = 0;
+            for (Node n : this.children) {
+                res += (n != null ? n.getNumNodes(level) : 0);
+            }
+            return res;
         }
 
         private int getNumNodesWithObjectsOrChilds(int level) {
             if (this.level == level) {
-                boolean hasData = (this.upperLeftNode != null || this.objects.size() > 0);
+                boolean hasData = (!isLeaf() || this.objects.size() > 0);
                 return (hasData ? 1 : 0);
-            } else if (this.upperLeftNode == null) {
+            } else if (isLeaf()) {
                 return 0;
             }
 
-            return this.lowerLeftNode.getNumNodesWithObjectsOrChilds(level)
-                    + this.lowerRightNode.getNumNodesWithObjectsOrChilds(level)
-                    + this.upperLeftNode.getNumNodesWithObjectsOrChilds(level)
-                    + this.upperRightNode.getNumNodesWithObjectsOrChilds(level);
+            int res = 0;
+            for (Node n : this.children) {
+                res += (n != null ? n.getNumNodesWithObjectsOrChilds(level) : 0);
+            }
+            return res;
         }
 
         private int getNumObjects() {
-            if (this.level == maxLevel) {
-                return this.objects.size();
-            } else if (this.upperLeftNode == null) {
-                return 0;
-            }
-
-            return this.lowerLeftNode.getNumObjects()
-                    + this.lowerRightNode.getNumObjects()
-                    + this.upperLeftNode.getNumObjects()
-                    + this.upperRightNode.getNumObjects();
+            return this.count;
         }
 
         // max number of objects on a node with givem level
         public int getMaxObjectsAtLevel(int level) {
             if (this.level == level) {
                 return this.getNumObjects();
-            } else if (this.upperLeftNode == null) {
+            } else if (isLeaf()) {
                 return 0;
             }
 
-            int upper = Math.max(this.upperLeftNode.getMaxObjectsAtLevel(level),
-                    this.upperRightNode.getMaxObjectsAtLevel(level));
-            int lower = Math.max(this.lowerLeftNode.getMaxObjectsAtLevel(level),
-                    this.lowerRightNode.getMaxObjectsAtLevel(level));
-            return Math.max(upper, lower);
+            int res = 0;
+            for (Node n : this.children) {
+                res = Math.max(res, n != null ? n.getMaxObjectsAtLevel(level) : 0);
+            }
+            return res;
         }
 
         private Node locateAtLevel(double x, double y, int level) {
@@ -214,14 +599,18 @@ public class QuadTree<T extends LocationObject> {
             return child.locateAtLevel(x, y, level);
         }
 
+        private boolean hasObjects(Node n) {
+            return n != null && n.getNumObjects() > 0;
+        }
+
         private char getCharForNode(Node n) {
-            if (n == null || n.upperLeftNode == null) {
+            if (n == null || n.isLeaf()) {
                 return ' ';
             }
-            int ul = n.upperLeftNode.getNumObjects() > 0 ? 1 : 0;
-            int ur = n.upperRightNode.getNumObjects() > 0 ? 1 : 0;
-            int ll = n.lowerLeftNode.getNumObjects() > 0 ? 1 : 0;
-            int lr = n.lowerRightNode.getNumObjects() > 0 ? 1 : 0;
+            int ll = hasObjects(n.children[0]) ? 1 : 0;
+            int lr = hasObjects(n.children[1]) ? 1 : 0;
+            int ul = hasObjects(n.children[2]) ? 1 : 0;
+            int ur = hasObjects(n.children[3]) ? 1 : 0;
             int sum = ul + ur + ll + lr;
 
             if (sum == 4) {
@@ -285,36 +674,139 @@ public class QuadTree<T extends LocationObject> {
 
     private final Node root;
 
+    private final QueryMetrics metrics = new QueryMetrics();
+    private final QueryPlanner planner = new QueryPlanner();
+
     public QuadTree(int maxLevel) {
+        this(maxLevel, 0);
+    }
+
+    public QuadTree(int maxLevel, int bucketCapacity) {
+        this(maxLevel, bucketCapacity, false);
+    }
+
+    // coordinateColumns: store the coordinates of the objects in the leaves,
+    // which needs 16 more bytes per object but avoids loading objects that
+    // are not in the search area; objects then have to be moved with move()
+    // as the stored coordinates are used for all searches
+    public QuadTree(int maxLevel, int bucketCapacity, boolean coordinateColumns) {
         this.maxLevel = maxLevel;
+        this.bucketCapacity = bucketCapacity;
+        this.coordinateColumns = coordinateColumns;
         this.root = new Node(-180, -90, +180, +90, 0);
     }
 
+    // Adds obj with a rank; smaller ranks are better and are returned
+    // first if there are too many results.
+    public void put(T obj, long rank) {
+        put(obj, rank, null);
+    }
+
+    // Ranks that are numbers are ordered by their value, other ranks by their
+    // full text and before all non-negative numbers (see RankIndex.toRank).
+    // Unlike in older versions the uid is not used: objects put with the same
+    // rank and uid are all kept, so remove an object before putting it again.
+    @Deprecated
     public void put(T obj, String rank, String uid) {
+        put(obj, RankIndex.toRank(rank), RankIndex.toKey(rank));
+    }
+
+    private void put(T obj, long rank, String key) {
+        LatLon pos = obj.getLatLon();
+        root.insert(obj, rank, key, pos.lon, pos.lat);
+        numObjects++;
+
+        sortedByRank.add(rank, key, obj);
+    }
+
+    // Removes obj from the tree; obj has to be at the position it was put.
+    public boolean remove(T obj) {
         LatLon pos = obj.getLatLon();
-        Node n = root.locate(pos.lon, pos.lat, true);
-        n.add(obj);
+        long[] rank = new long[1];
+        if (!root.remove(obj, pos.lon, pos.lat, rank, new String[1])) {
+            return false;
+        }
+        numObjects--;
+
+        sortedByRank.remove(rank[0], obj);
+        return true;
+    }
 
-        // include the uid to avoid duplicates
-        sortedByRank.put(rank + uid, obj);
+    // Updates the position of obj that was stored at oldPos before, i.e.,
+    // obj.getLatLon() already returns the new position.
+    public boolean move(T obj, LatLon oldPos) {
+        long[] rank = new long[1];
+        String[] key = new String[1];
+        if (!root.remove(obj, oldPos.lon, oldPos.lat, rank, key)) {
+            return false;
+        }
+
+        LatLon pos = obj.getLatLon();
+        root.insert(obj, rank[0], key[0], pos.lon, pos.lat);
+        return true;
     }
 
-    private boolean matches(T obj, SearchFilter filter, BoundingShape area) {
+    private static boolean matches(LocationObject obj, SearchFilter filter, BoundingShape area) {
         return (area == null || area.contains(obj.getLatLon()))
-                && filter.matches(obj);
+                && SearchFilter.hasCategory(filter, obj) && filter.matches(obj);
+    }
+
+    // cumulative stats of all searches
+    public QueryMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    // completes the stats of a search that was started at startNanos
+    private SearchResult<T> record(SearchResult<T> res, QueryStats stats, long startNanos) {
+        stats.results = res.data.size();
+        stats.nanos = System.nanoTime() - startNanos;
+        this.metrics.record(stats);
+        return new SearchResult<T>(res.data, res.totalHits, stats);
     }
 
     public SearchResult<T> linearSearch(SearchFilter filter, BoundingShape area) {
-        Collection<T> res = new ArrayList<T>();
-        int maxResults = filter.getMaxResults();
+        long start = System.nanoTime();
+        QueryStats stats = new QueryStats();
+        return record(linearSearch(filter, area, filter.getMaxResults(), stats), stats, start);
+    }
 
-        Collection<T> data = sortedByRank.values();
+    // linear search for the best maxResults objects
+    private SearchResult<T> linearSearch(SearchFilter filter, BoundingShape area, int maxResults,
+            QueryStats stats) {
+        SearchResult<T> res = linearSearch(sortedByRank, filter, area, maxResults, stats);
+        return new SearchResult<T>(res.data, getTotalHits(filter, area, res.totalHits));
+    }
+
+    // Total hits of a search: the exact count if it can be taken from the
+    // node counts, otherwise the estimate, as counting the objects that
+    // match the filter would visit every object in the area.
+    private int getTotalHits(SearchFilter filter, BoundingShape area, int estimate) {
+        return SearchFilter.matchesAll(filter) ? count(filter, area) : estimate;
+    }
+
+    static <T extends LocationObject> SearchResult<T> linearSearch(Collection<T> data, SearchFilter filter,
+            BoundingShape area) {
+        return linearSearch(data, filter, area, new QueryStats());
+    }
+
+    static <T extends LocationObject> SearchResult<T> linearSearch(Collection<T> data, SearchFilter filter,
+            BoundingShape area, QueryStats stats) {
+        return linearSearch(data, filter, area, filter.getMaxResults(), stats);
+    }
+
+    static <T extends LocationObject> SearchResult<T> linearSearch(Collection<T> data, SearchFilter filter,
+            BoundingShape area, int maxResults, QueryStats stats) {
+        Collection<T> res = new ArrayList<T>();
 
         int tested = 0;
         for (T obj : data) {
             tested++;
-            if (matches(obj, filter, area)) {
-                res.add(obj);
+            if ((area == null || area.contains(obj.getLatLon())) && SearchFilter.hasCategory(filter, obj)) {
+                stats.filterEvaluations++;
+                if (filter.matches(obj)) {
+                    stats.filterMatches++;
+                    res.add(obj);
+                }
             }
 
             if (res.size() == maxResults) {
@@ -322,86 +814,704 @@ public class QuadTree<T extends LocationObject> {
             }
         }
 
-        int matched = res.size();
+        stats.objectsTested += tested;
 
+        int estimatedTotalHits;
         if (tested < 100) {
-            tested = 0;
-            matched = 0;
-            for (T obj : data) {
-                tested++;
-                if (matches(obj, filter, area)) {
-                    matched++;
-                }
+            estimatedTotalHits = estimateTotalHits(data, filter, area);
+        } else {
+            double ratio = res.size() / (double) tested;
+            estimatedTotalHits = (int) (ratio * data.size());
+        }
 
-                if (tested == 100) {
-                    break;
-                }
+        return new SearchResult<T>(res, estimatedTotalHits);
+    }
+
+    // estimates the number of matches from the first 100 objects
+    static <T extends LocationObject> int estimateTotalHits(Collection<T> data, SearchFilter filter,
+            BoundingShape area) {
+        int tested = 0;
+        int matched = 0;
+        for (T obj : data) {
+            tested++;
+            if (matches(obj, filter, area)) {
+                matched++;
             }
 
+            if (tested == 100) {
+                break;
+            }
         }
 
         double ratio = matched / (double) tested;
-        int estimatedTotalHits = (int) (ratio * data.size());
+        return (int) (ratio * data.size());
+    }
 
-        return new SearchResult<T>(res, estimatedTotalHits);
+    // Returns the best ranked objects in the area that match the filter.
+    // Nodes are visited in the order of the best rank in their subtree, so
+    // subtrees that cannot contain one of the best objects are skipped.
+    public SearchResult<T> rankedSearch(SearchFilter filter, BoundingShape area) {
+        long start = System.nanoTime();
+        QueryStats stats = new QueryStats();
+        return record(rankedSearch(filter, area, filter.getMaxResults(), stats), stats, start);
     }
 
+    // ranked search for the best maxResults objects
+    private SearchResult<T> rankedSearch(SearchFilter filter, BoundingShape area, int maxResults,
+            QueryStats stats) {
+        if (area == null) {
+            return linearSearch(filter, area, maxResults, stats);
+        }
+
+        List<T> res = TreeSearch.rankedSearch(root, filter, area, maxResults, stats);
+        return new SearchResult<T>(res, getTotalHits(filter, area,
+                res.size() < maxResults ? res.size() : estimateTotalHits(sortedByRank, filter, area)));
+    }
+
+    // Clusters the objects in area (null for everywhere) by the tree nodes at
+    // level, i.e., cells of 360 / 2^level by 180 / 2^level degrees. Only nodes
+    // down to level are visited, so the costs depend on the number of cells
+    // and not on the number of objects. Cells at the border of area also
+    // count their objects outside of area; cells of leaves above level cover
+    // the whole leaf.
+    public List<Cluster<T>> aggregate(BoundingShape area, int level) {
+        if (area == null) {
+            area = new BoundingBox(new LatLon(-90, -180), new LatLon(90, 180));
+        }
+
+        List<Cluster<T>> res = new ArrayList<Cluster<T>>();
+        root.aggregate(res, area, level, false);
+        return res;
+    }
+
+    // exact number of objects in area
+    public int count(BoundingShape area) {
+        return count(null, area);
+    }
+
+    // exact number of objects in area (null for everywhere) that match the filter
+    public int count(SearchFilter filter, BoundingShape area) {
+        return TreeSearch.count(root, filter, area);
+    }
+
+    // Returns the objects in area that match the filter: unordered if there
+    // are at most getMaxResults of them, otherwise the best ranked ones.
+    // The planner chooses the search from the estimated number of results,
+    // so if there will be too many results anyway, the tree search is skipped.
     public SearchResult<T> getInArea(SearchFilter filter, BoundingShape area) {
+        long start = System.nanoTime();
+        QueryStats stats = new QueryStats();
         int maxResults = getMaxResults(filter.getMaxResults());
+        stats.plan = plan(filter, area, maxResults);
 
         SearchResult<T> res = null;
-        if (area != null) {
-            TreeSearchData search = new TreeSearchData(filter, maxResults);
-            treeSearch(search, area.getLowerLeft(), area.getUpperRight());
+        if (stats.plan == Plan.TREE) {
+            TreeSearch<T> search = new TreeSearch<T>(filter, area, maxResults, stats);
+            treeSearch(search);
             int estimatedTotalHits = search.res.size();
             res = new SearchResult<T>(search.res, estimatedTotalHits);
+
+            // the estimate was too low, we have to do a ranked search to get
+            // an ordered list of results
+            if (res.data.size() > maxResults) {
+                stats.fallback = true;
+                res = rankedSearch(filter, area, filter.getMaxResults(), stats);
+            }
+        } else {
+            res = plannedSearch(filter, area, maxResults, stats);
+        }
+
+        this.planner.record(filter, stats);
+        return record(res, stats, start);
+    }
+
+    private Plan plan(SearchFilter filter, BoundingShape area, int maxResults) {
+        if (area == null) {
+            return Plan.RANKED_SCAN;
+        }
+        double areaCount = (SearchFilter.matchesAll(filter) ? count(filter, area) : root.estimateCount(area, false));
+        return this.planner.plan(filter, areaCount, this.numObjects, maxResults);
+    }
+
+    // Ranked search or scan in rank order as chosen by the planner, which
+    // returns the same objects as the tree search with its fallback: unless
+    // the node counts show that there are more than maxResults matches, it
+    // looks for up to maxResults + 1 of them, so that all matches are returned
+    // if there are not more than maxResults, otherwise the best ones.
+    private SearchResult<T> plannedSearch(SearchFilter filter, BoundingShape area, int maxResults,
+            QueryStats stats) {
+        if (area == null || SearchFilter.matchesAll(filter)) {
+            return (stats.plan == Plan.RANKED_TREE ? rankedSearch(filter, area, filter.getMaxResults(), stats)
+                    : linearSearch(filter, area, filter.getMaxResults(), stats));
+        }
+
+        int limit = Math.max(filter.getMaxResults(), maxResults + 1);
+        SearchResult<T> res = (stats.plan == Plan.RANKED_TREE ? rankedSearch(filter, area, limit, stats)
+                : linearSearch(filter, area, limit, stats));
+        if (res.data.size() <= maxResults || res.data.size() <= filter.getMaxResults()) {
+            return res;
         }
 
-        // if the search returned null (too many results), we have to do a linear search
-        // to get an ordered list of results
-        if (res == null || res.data.size() > maxResults) {
-            res = linearSearch(filter, area);
+        List<T> best = new ArrayList<T>(res.data).subList(0, filter.getMaxResults());
+        return new SearchResult<T>(new ArrayList<T>(best), res.totalHits);
+    }
+
+    // Runs getInArea for areas.get(i) and filters.get(i) for all i with a
+    // single traversal of the tree: every node is only checked against the
+    // searches whose area it overlaps, so the upper levels are shared. The
+    // latency of each search is its share of the traversal plus the time of
+    // its own fallback search.
+    public List<SearchResult<T>> getInArea(List<SearchFilter> filters, List<? extends BoundingShape> areas) {
+        if (filters.size() != areas.size()) {
+            throw new IllegalArgumentException("got " + filters.size() + " filters for " + areas.size() + " areas");
         }
 
+        long start = System.nanoTime();
+        List<TreeSearch<T>> searches = new ArrayList<TreeSearch<T>>();
+        int[] active = new int[areas.size()];
+        int numActive = 0;
+        for (int i = 0; i < areas.size(); i++) {
+            SearchFilter filter = filters.get(i);
+            BoundingShape area = areas.get(i);
+            int maxResults = getMaxResults(filter.getMaxResults());
+            searches.add(new TreeSearch<T>(filter, area, maxResults, new QueryStats()));
+
+            // see treeSearch for empty areas
+            if (area != null && area.getLowerLeft().lon != area.getUpperRight().lon
+                    && area.getLowerLeft().lat != area.getUpperRight().lat) {
+                active[numActive++] = i;
+            }
+        }
+        root.getObjectsInArea(searches, active, new boolean[numActive], numActive);
+        long traversalShare = (System.nanoTime() - start) / Math.max(1, searches.size());
+
+        List<SearchResult<T>> res = new ArrayList<SearchResult<T>>();
+        for (TreeSearch<T> search : searches) {
+            long searchStart = System.nanoTime() - traversalShare;
+            SearchResult<T> r = new SearchResult<T>(search.res, search.res.size());
+
+            // too many results, do a ranked search to get an ordered list of results
+            if (search.area == null || r.data.size() > search.maxResults) {
+                search.stats.fallback = true;
+                r = rankedSearch(search.filter, search.area, search.filter.getMaxResults(), search.stats);
+            }
+            res.add(record(r, search.stats, searchStart));
+        }
         return res;
     }
 
-    class TreeSearchData {
-        public final SearchFilter filter;
-        public final int maxResults;
-        public Collection<T> res = new ArrayList<T>();
+    private void treeSearch(TreeSearch<T> search) {
+        LatLon lowerLeft = search.area.getLowerLeft();
+        LatLon upperRight = search.area.getUpperRight();
+
+        // if the area is empty then return an empty set; areas across +/-180 deg.
+        // are handled by BoundingShape.getOverlap
+        if (lowerLeft.lon == upperRight.lon || lowerLeft.lat == upperRight.lat) {
+            // return empty result
+        } else {
+            search.search(root, false);
+        }
+    }
+
+    // Same as getInArea, but the tree search is split into fork-join tasks
+    // for the subtrees with many objects. The filter has to be thread-safe,
+    // and the tree must not be modified during the search.
+    public SearchResult<T> getInAreaParallel(SearchFilter filter, BoundingShape area) {
+        return getInAreaParallel(filter, area, ForkJoinPool.commonPool());
+    }
+
+    public SearchResult<T> getInAreaParallel(SearchFilter filter, BoundingShape area, ForkJoinPool pool) {
+        long start = System.nanoTime();
+        QueryStats stats = new QueryStats();
+        int maxResults = getMaxResults(filter.getMaxResults());
+        stats.plan = plan(filter, area, maxResults);
+
+        SearchResult<T> res = null;
+        if (stats.plan == Plan.TREE) {
+            LatLon lowerLeft = area.getLowerLeft();
+            LatLon upperRight = area.getUpperRight();
+            List<T> found = new ArrayList<T>();
+            if (lowerLeft.lon != upperRight.lon && lowerLeft.lat != upperRight.lat) {
+                ParallelSearch search = new ParallelSearch(filter, area, maxResults, stats);
+                found = pool.invoke(new AreaTask(search, root, false));
+            }
+            res = new SearchResult<T>(found, found.size());
+        }
+
+        // too many results, do a ranked search to get an ordered list of results
+        if (res == null) {
+            res = plannedSearch(filter, area, maxResults, stats);
+        } else if (res.data.size() > maxResults) {
+            stats.fallback = true;
+            res = rankedSearch(filter, area, filter.getMaxResults(), stats);
+        }
 
-        TreeSearchData(SearchFilter filter, int maxResults) {
+        this.planner.record(filter, stats);
+        return record(res, stats, start);
+    }
+
+    // search parameters shared by all tasks of a parallel search
+    class ParallelSearch {
+        final SearchFilter filter;
+        final BoundingShape area;
+        final int maxResults;
+
+        // the tasks add their stats when they are done
+        final QueryStats stats;
+
+        // set once the results of some task exceed maxResults; as the
+        // results are dropped for the ranked search anyway, the other
+        // tasks stop then as well
+        volatile boolean tooManyResults = false;
+
+        ParallelSearch(SearchFilter filter, BoundingShape area, int maxResults, QueryStats stats) {
             this.filter = filter;
+            this.area = area;
             this.maxResults = maxResults;
+            this.stats = stats;
         }
     }
 
-    private void treeSearch(TreeSearchData search, LatLon lowerLeft, LatLon upperRight) {
+    // Collects the objects below node. Children with at least
+    // PARALLEL_THRESHOLD objects are forked, all others are searched
+    // sequentially by this task; a node with only one large child in the
+    // area just descends without forking, so small areas stay on one thread.
+    class AreaTask extends RecursiveTask<List<T>> {
+        private static final long serialVersionUID = 1L;
+
+        private final ParallelSearch search;
+        private final Node node;
+        private boolean inside;
+
+        AreaTask(ParallelSearch search, Node node, boolean inside) {
+            this.search = search;
+            this.node = node;
+            this.inside = inside;
+        }
+
+        @Override
+        protected List<T> compute() {
+            Node n = descend();
+            if (n == null) {
+                return new ArrayList<T>();
+            } else if (n.isLeaf() || n.count < PARALLEL_THRESHOLD) {
+                return searchSequential(n, this.inside);
+            }
 
-        // if the area is empty then return an empty set
-        if (lowerLeft.lon == upperRight.lon || lowerLeft.lat == upperRight.lat) {
-            // return empty result
-        } else if (lowerLeft.lon > upperRight.lon) {
-            // search accross +/-180 deg. 
-            LatLon lowerLeft1 = lowerLeft;
-            LatLon upperRight1 = new LatLon(upperRight.lat, 180);
+            List<AreaTask> tasks = new ArrayList<AreaTask>();
+            for (Node c : n.children) {
+                if (c != null) {
+                    tasks.add(new AreaTask(this.search, c, this.inside));
+                }
+            }
+            invokeAll(tasks);
+
+            List<T> res = new ArrayList<T>();
+            for (AreaTask t : tasks) {
+                res.addAll(t.join());
+            }
+            return res;
+        }
+
+        // Returns the first node below this.node that has to be searched
+        // sequentially or that has more than one child in the area, or null
+        // if the area contains no object of this.node; this.inside is updated
+        // for the returned node.
+        private Node descend() {
+            QueryStats stats = new QueryStats();
+            Node n = this.node;
+            try {
+                while (true) {
+                    if (n.isLeaf() || n.count < PARALLEL_THRESHOLD) {
+                        return n;
+                    }
+
+                    stats.nodesVisited++;
+                    if (!n.hasCategory(this.search.filter)) {
+                        return null;
+                    } else if (!this.inside) {
+                        Overlap overlap = n.getOverlap(this.search.area);
+                        if (overlap == Overlap.OUTSIDE) {
+                            return null;
+                        }
+                        this.inside = (overlap == Overlap.INSIDE);
+                    }
+
+                    // descend as long as there is only one child in the area
+                    Node single = null;
+                    int numChildren = 0;
+                    for (Node c : n.children) {
+                        if (c != null && c.hasCategory(this.search.filter)
+                                && (this.inside || c.getOverlap(this.search.area) != Overlap.OUTSIDE)) {
+                            single = c;
+                            numChildren++;
+                        }
+                    }
+                    if (numChildren != 1) {
+                        return n;
+                    }
+                    n = single;
+                }
+            } finally {
+                this.search.stats.add(stats);
+            }
+        }
+
+        private List<T> searchSequential(Node n, boolean nodeInside) {
+            QueryStats stats = new QueryStats();
+            TreeSearch<T> data = new TreeSearch<T>(this.search.filter, this.search.area,
+                    this.search.maxResults, stats);
+            if (!this.search.tooManyResults && !data.search(n, nodeInside)) {
+                this.search.tooManyResults = true;
+            }
+            this.search.stats.add(stats);
+            return (List<T>) data.res;
+        }
+    }
+
+    // Depth-first traversal of the nodes in an area that only descends as
+    // far as needed to return the next object.
+    class AreaSpliterator implements Spliterator<T> {
+        private final SearchFilter filter;
+        private final BoundingShape area;
+
+        // nodes still to visit and whether they are entirely in the area
+        private final ArrayDeque<Node> nodes = new ArrayDeque<Node>();
+        private final ArrayDeque<Boolean> inside = new ArrayDeque<Boolean>();
+
+        // leaf currently returned
+        private Node leaf = null;
+        private boolean leafInside = false;
+        private int idx = 0;
+
+        AreaSpliterator(SearchFilter filter, BoundingShape area) {
+            this.filter = filter;
+            this.area = area;
+            this.nodes.add(root);
+            this.inside.add(area == null);
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            while (true) {
+                if (this.leaf != null) {
+                    while (this.idx < this.leaf.objects.size()) {
+                        int i = this.idx++;
+                        if (this.leafInside || this.leaf.contains(i, this.area)) {
+                            T obj = this.leaf.objects.get(i);
+                            if (this.filter == null
+                                    || SearchFilter.hasCategory(this.filter, obj) && this.filter.matches(obj)) {
+                                action.accept(obj);
+                                return true;
+                            }
+                        }
+                    }
+                    this.leaf = null;
+                }
+
+                Node n = this.nodes.pollLast();
+                if (n == null) {
+                    return false;
+                }
+
+                boolean nodeInside = this.inside.pollLast();
+                if (!n.hasCategory(this.filter)) {
+                    continue;
+                } else if (!nodeInside) {
+                    Overlap overlap = n.getOverlap(this.area);
+                    if (overlap == Overlap.OUTSIDE) {
+                        continue;
+                    }
+                    nodeInside = (overlap == Overlap.INSIDE);
+                }
+
+                if (n.isLeaf()) {
+                    this.leaf = n;
+                    this.leafInside = nodeInside;
+                    this.idx = 0;
+                } else {
+                    for (int i = n.children.length - 1; i >= 0; i--) {
+                        if (n.children[i] != null) {
+                            this.nodes.add(n.children[i]);
+                            this.inside.add(nodeInside);
+                        }
+                    }
+                }
+            }
+        }
+
+        @Override
+        public Spliterator<T> trySplit() {
+            return null;
+        }
+
+        @Override
+        public long estimateSize() {
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public int characteristics() {
+            return NONNULL;
+        }
+    }
+
+    // Returns the objects in area (null for everywhere) that match the filter
+    // (null for all objects) as a lazy stream: the tree is only traversed as
+    // far as the stream is consumed, so limit() or findFirst() stop the search
+    // early. The tree must not be modified while the stream is used.
+    public Stream<T> streamInArea(SearchFilter filter, BoundingShape area) {
+        return StreamSupport.stream(new AreaSpliterator(filter, area), false);
+    }
+
+    // entry of the queue for the nearest neighbor search: either a node with
+    // the distance to its area or an object with its exact distance
+    class NearestCandidate implements Comparable<NearestCandidate> {
+        final double dist;
+        final Node node;
+        final T obj;
+
+        NearestCandidate(double dist, Node node, T obj) {
+            this.dist = dist;
+            this.node = node;
+            this.obj = obj;
+        }
+
+        @Override
+        public int compareTo(NearestCandidate o) {
+            return Double.compare(this.dist, o.dist);
+        }
+    }
+
+    // Returns the k objects closest to at that match the filter (if not null),
+    // ordered by distance. Nodes are visited in the order of their minimal
+    // distance to at, so the search stops as soon as the k-th object is
+    // closer than the next node.
+    public List<T> nearest(LatLon at, int k, SearchFilter filter) {
+        List<T> res = new ArrayList<T>(Math.min(k, 1024));
+        PriorityQueue<NearestCandidate> queue = new PriorityQueue<NearestCandidate>();
+        queue.add(new NearestCandidate(0, root, null));
+
+        while (res.size() < k && !queue.isEmpty()) {
+            NearestCandidate c = queue.poll();
+            if (c.obj != null) {
+                res.add(c.obj);
+            } else if (c.node.isLeaf()) {
+                for (int i = 0; i < c.node.objects.size(); i++) {
+                    T obj = c.node.objects.get(i);
+                    if (filter == null || SearchFilter.hasCategory(filter, obj) && filter.matches(obj)) {
+                        queue.add(new NearestCandidate(c.node.getDistanceInMeters(i, at), null, obj));
+                    }
+                }
+            } else {
+                for (Node n : c.node.children) {
+                    if (n != null && n.hasCategory(filter)) {
+                        double dist = BoundingBox.getDistanceInMeters(at, n.y0, n.x0, n.y1, n.x1);
+                        queue.add(new NearestCandidate(dist, n, null));
+                    }
+                }
+            }
+        }
+
+        return res;
+    }
 
-            LatLon lowerLeft2 = new LatLon(lowerLeft.lat, -180);
-            LatLon upperRight2 = upperRight;
+    // Spatial join: calls action for every pair of an object of this tree and
+    // an object of other that are at most meters apart. Both trees are walked
+    // at the same time and pairs of nodes that are too far apart are skipped
+    // as a whole, so nearby objects share the traversal work instead of
+    // searching other once per object.
+    public <U extends LocationObject> void join(QuadTree<U> other, double meters,
+            BiConsumer<? super T, ? super U> action) {
+        join(this.root, other.root, meters, action);
+    }
+
+    // Same as join(QuadTree, ...), but pairs of large subtrees are joined by
+    // fork-join tasks; action has to be thread-safe, and neither tree may be
+    // modified during the join.
+    public <U extends LocationObject> void joinParallel(QuadTree<U> other, double meters,
+            BiConsumer<? super T, ? super U> action) {
+        joinParallel(other, meters, action, ForkJoinPool.commonPool());
+    }
 
-            treeSearch(search, lowerLeft1, upperRight1);
+    public <U extends LocationObject> void joinParallel(QuadTree<U> other, double meters,
+            BiConsumer<? super T, ? super U> action, ForkJoinPool pool) {
+        pool.invoke(new JoinTask<U>(this.root, other.root, null, meters, action));
+    }
+
+    // Spatial join with a SpatialHash: calls action for every pair of an
+    // object of this tree and a value of other that are at most meters apart.
+    // other is searched once per leaf of this tree for the box around the
+    // objects of the leaf.
+    public <U extends LocationObject> void join(SpatialHash<U> other, double meters,
+            BiConsumer<? super T, ? super U> action) {
+        join(this.root, other, meters, action);
+    }
 
-            // only search the other part if result set not too big
-            if (search.res.size() <= search.maxResults) {
-                treeSearch(search, lowerLeft2, upperRight2);
+    // Same as join(SpatialHash, ...), but large subtrees are joined by
+    // fork-join tasks; action has to be thread-safe.
+    public <U extends LocationObject> void joinParallel(SpatialHash<U> other, double meters,
+            BiConsumer<? super T, ? super U> action) {
+        joinParallel(other, meters, action, ForkJoinPool.commonPool());
+    }
+
+    public <U extends LocationObject> void joinParallel(SpatialHash<U> other, double meters,
+            BiConsumer<? super T, ? super U> action, ForkJoinPool pool) {
+        pool.invoke(new JoinTask<U>(this.root, null, other, meters, action));
+    }
+
+    private <U extends LocationObject> void join(Node a, QuadTree<U>.Node b, double meters,
+            BiConsumer<? super T, ? super U> action) {
+        if (a.count == 0 || b.count == 0 || !a.isNear(b.y0, b.x0, b.y1, b.x1, meters)) {
+            return;
+        } else if (a.isLeaf() && b.isLeaf()) {
+            joinLeaves(a, b, meters, action);
+        } else if (splitFirst(a, b)) {
+            for (Node c : a.children) {
+                if (c != null) {
+                    join(c, b, meters, action);
+                }
             }
         } else {
-            root.getObjectsInArea(search, lowerLeft.lon, upperRight.lon, lowerLeft.lat, upperRight.lat);
+            for (QuadTree<U>.Node c : b.children) {
+                if (c != null) {
+                    join(a, c, meters, action);
+                }
+            }
+        }
+    }
+
+    // true if the children of a are joined with b, false for the children of b with a;
+    // the larger node is split so that both sides get smaller at the same pace
+    private static boolean splitFirst(QuadTree<?>.Node a, QuadTree<?>.Node b) {
+        return !a.isLeaf() && (b.isLeaf() || a.x1 - a.x0 >= b.x1 - b.x0);
+    }
+
+    private <U extends LocationObject> void joinLeaves(Node a, QuadTree<U>.Node b, double meters,
+            BiConsumer<? super T, ? super U> action) {
+        for (int j = 0; j < b.objects.size(); j++) {
+            LatLon pos = b.getLatLon(j);
+            for (int i = 0; i < a.objects.size(); i++) {
+                if (a.getDistanceInMeters(i, pos) <= meters) {
+                    action.accept(a.objects.get(i), b.objects.get(j));
+                }
+            }
+        }
+    }
+
+    private <U extends LocationObject> void join(Node a, SpatialHash<U> other, double meters,
+            BiConsumer<? super T, ? super U> action) {
+        if (a.count == 0) {
+            return;
+        } else if (!a.isLeaf()) {
+            for (Node c : a.children) {
+                if (c != null) {
+                    join(c, other, meters, action);
+                }
+            }
+            return;
+        }
+
+        // the objects usually cover only a small part of a leaf
+        double latMin = Double.MAX_VALUE;
+        double latMax = -Double.MAX_VALUE;
+        double lonMin = Double.MAX_VALUE;
+        double lonMax = -Double.MAX_VALUE;
+        for (int i = 0; i < a.objects.size(); i++) {
+            LatLon pos = a.getLatLon(i);
+            latMin = Math.min(latMin, pos.lat);
+            latMax = Math.max(latMax, pos.lat);
+            lonMin = Math.min(lonMin, pos.lon);
+            lonMax = Math.max(lonMax, pos.lon);
+        }
+
+        BoundingBox box = BoundingBox.around(latMin, lonMin, latMax, lonMax, meters);
+        LatLon lowerLeft = box.getLowerLeft();
+        LatLon upperRight = box.getUpperRight();
+        List<U> candidates;
+        if (lowerLeft.lon <= upperRight.lon) {
+            candidates = other.get(box);
+        } else {
+            // across +/-180 deg.
+            candidates = other.get(new BoundingBox(lowerLeft, new LatLon(upperRight.lat, 180)));
+            candidates.addAll(other.get(new BoundingBox(new LatLon(lowerLeft.lat, -180), upperRight)));
+        }
+
+        for (U u : candidates) {
+            LatLon pos = u.getLatLon();
+            for (int i = 0; i < a.objects.size(); i++) {
+                if (a.getDistanceInMeters(i, pos) <= meters) {
+                    action.accept(a.objects.get(i), u);
+                }
+            }
+        }
+    }
+
+    // Joins node a with node b of another tree or with a spatial hash; pairs
+    // with at least PARALLEL_THRESHOLD objects are split into subtasks in the
+    // same way as the sequential join, smaller ones are joined sequentially.
+    class JoinTask<U extends LocationObject> extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Node a;
+        private final QuadTree<U>.Node b;
+        private final SpatialHash<U> hash;
+        private final double meters;
+        private final BiConsumer<? super T, ? super U> action;
+
+        JoinTask(Node a, QuadTree<U>.Node b, SpatialHash<U> hash, double meters,
+                BiConsumer<? super T, ? super U> action) {
+            this.a = a;
+            this.b = b;
+            this.hash = hash;
+            this.meters = meters;
+            this.action = action;
+        }
+
+        @Override
+        protected void compute() {
+            List<JoinTask<U>> tasks = new ArrayList<JoinTask<U>>();
+            if (this.hash != null) {
+                if (a.isLeaf() || a.count < PARALLEL_THRESHOLD) {
+                    QuadTree.this.join(a, this.hash, this.meters, this.action);
+                    return;
+                }
+                for (Node c : a.children) {
+                    if (c != null) {
+                        tasks.add(new JoinTask<U>(c, null, this.hash, this.meters, this.action));
+                    }
+                }
+            } else if (a.count + b.count < PARALLEL_THRESHOLD || (a.isLeaf() && b.isLeaf())) {
+                QuadTree.this.join(a, b, this.meters, this.action);
+                return;
+            } else if (a.count == 0 || b.count == 0 || !a.isNear(b.y0, b.x0, b.y1, b.x1, this.meters)) {
+                return;
+            } else if (splitFirst(a, b)) {
+                for (Node c : a.children) {
+                    if (c != null) {
+                        tasks.add(new JoinTask<U>(c, b, null, this.meters, this.action));
+                    }
+                }
+            } else {
+                for (QuadTree<U>.Node c : b.children) {
+                    if (c != null) {
+                        tasks.add(new JoinTask<U>(a, c, null, this.meters, this.action));
+                    }
+                }
+            }
+            invokeAll(tasks);
         }
     }
 
     private int getMaxResults(double limit) {
+        return getMaxResults(this.numObjects, limit);
+    }
+
+    // Maximal number of unordered results of getInArea; with more results, the
+    // best ranked ones are returned. The search itself is chosen by the
+    // QueryPlanner from estimated counts instead of the uniform selectivity
+    // assumed below.
+    static int getMaxResults(int numObjects, double limit) {
 
         // if 1% match, then 
         // - linear search for the best 50 requires a scan 
@@ -421,7 +1531,50 @@ public class QuadTree<T extends LocationObject> {
         // 0.8% match
         // - linear search requires 50 * 125 = 6.250K
         // - tree search returns 1Mio / 125 = 8K	(i.e., more than 7K)
-        return (int) Math.sqrt(this.numObjects * limit);
+        return (int) Math.sqrt(numObjects * limit);
+    }
+
+    public int getNumNodes() {
+        return this.numNodes;
+    }
+
+    // arrays in the layout of a MappedQuadTree snapshot
+    class SnapshotData {
+        final ToLongFunction<? super T> idFunction;
+        final double[] nodeBounds = new double[4 * QuadTree.this.numNodes];
+        final int[] nodeInts = new int[4 * QuadTree.this.numNodes];
+        final double[] lats = new double[QuadTree.this.numObjects];
+        final double[] lons = new double[QuadTree.this.numObjects];
+        final long[] ids = new long[QuadTree.this.numObjects];
+
+        // position of the objects in the snapshot
+        final Map<T, Integer> index = new IdentityHashMap<T, Integer>();
+        int numNodes = 0;
+        int numObjects = 0;
+
+        SnapshotData(ToLongFunction<? super T> idFunction) {
+            this.idFunction = idFunction;
+        }
+    }
+
+    // Writes the tree to a snapshot file that can be opened with
+    // MappedQuadTree.open; objects are stored by the id returned by idFunction.
+    public void writeSnapshot(Path file, ToLongFunction<? super T> idFunction) throws IOException {
+        SnapshotData data = new SnapshotData(idFunction);
+        root.writeTo(data);
+
+        int[] byRank = new int[this.numObjects];
+        int i = 0;
+        for (T obj : this.sortedByRank) {
+            byRank[i++] = data.index.get(obj);
+        }
+
+        MappedQuadTree.write(file, data.nodeBounds, data.nodeInts, data.numNodes,
+                data.lats, data.lons, data.ids, byRank);
+    }
+
+    public int getNumObjects() {
+        return this.numObjects;
     }
 
     private static double getEdgeLengthForLevel(int level) {
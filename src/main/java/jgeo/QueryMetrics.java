@@ -0,0 +1,94 @@
+package jgeo;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Cumulative QueryStats of all searches of a tree; safe to update and read
+// from several threads.
+public class QueryMetrics {
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder fallbacks = new LongAdder();
+    private final LongAdder nodesVisited = new LongAdder();
+    private final LongAdder leavesScanned = new LongAdder();
+    private final LongAdder objectsTested = new LongAdder();
+    private final LongAdder filterEvaluations = new LongAdder();
+    private final LongAdder results = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+
+    // bucket i counts the searches with a latency in [2^i, 2^(i+1)) ns
+    private final LongAdder[] latency = new LongAdder[63];
+
+    public QueryMetrics() {
+        for (int i = 0; i < this.latency.length; i++) {
+            this.latency[i] = new LongAdder();
+        }
+    }
+
+    void record(QueryStats stats) {
+        this.queries.increment();
+        if (stats.fallback) {
+            this.fallbacks.increment();
+        }
+        this.nodesVisited.add(stats.nodesVisited);
+        this.leavesScanned.add(stats.leavesScanned);
+        this.objectsTested.add(stats.objectsTested);
+        this.filterEvaluations.add(stats.filterEvaluations);
+        this.results.add(stats.results);
+        this.nanos.add(stats.nanos);
+        this.latency[63 - Long.numberOfLeadingZeros(Math.max(1, stats.nanos))].increment();
+    }
+
+    public long getQueries() {
+        return this.queries.sum();
+    }
+
+    public long getFallbacks() {
+        return this.fallbacks.sum();
+    }
+
+    // number of searches per latency bucket, see latency
+    public long[] getLatencyHistogram() {
+        long[] res = new long[this.latency.length];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = this.latency[i].sum();
+        }
+        return res;
+    }
+
+    // all counters by name, e.g., for an export to a monitoring system;
+    // latency buckets are named by their upper bound in ns
+    public Map<String, Long> toMap() {
+        Map<String, Long> res = new LinkedHashMap<String, Long>();
+        res.put("queries", this.queries.sum());
+        res.put("fallbacks", this.fallbacks.sum());
+        res.put("nodesVisited", this.nodesVisited.sum());
+        res.put("leavesScanned", this.leavesScanned.sum());
+        res.put("objectsTested", this.objectsTested.sum());
+        res.put("filterEvaluations", this.filterEvaluations.sum());
+        res.put("results", this.results.sum());
+        res.put("latencyNanos", this.nanos.sum());
+
+        long[] histogram = getLatencyHistogram();
+        for (int i = 0; i < histogram.length; i++) {
+            if (histogram[i] > 0) {
+                res.put("latency.le." + (i == 62 ? Long.MAX_VALUE : (2L << i)), histogram[i]);
+            }
+        }
+        return res;
+    }
+
+    public void reset() {
+        this.queries.reset();
+        this.fallbacks.reset();
+        this.nodesVisited.reset();
+        this.leavesScanned.reset();
+        this.objectsTested.reset();
+        this.filterEvaluations.reset();
+        this.results.reset();
+        this.nanos.reset();
+        for (LongAdder l : this.latency) {
+            l.reset();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package jgeo;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import jgeo.QueryStats.Plan;
+
+// Chooses how a search is done from the estimated number of results.
+//
+// The number of objects in the area is estimated from the counts of the tree
+// nodes, the share of these objects that match the filter is learned from
+// the previous searches with filters of the same selectivity key (see
+// SearchFilter.getSelectivityKey). As long as nothing is known about a
+// filter, the tree search is used, which falls back to the ranked search if
+// there are too many results. All plans return the same objects, the plan
+// only decides how they are found.
+class QueryPlanner {
+    // a ranked tree search needs about this many times more work per tested
+    // object than a scan in rank order (queue operations, node overhead)
+    private static final double RANKED_TREE_COST = 4;
+
+    // the tree search is only skipped if the expected results exceed the
+    // maximal results by this factor to allow for estimation errors
+    private static final double RANKED_LIMIT = 2;
+
+    // filter calls needed before the learned selectivity of a filter is used
+    private static final long MIN_EVALUATIONS = 100;
+
+    // selectivity keys with statistics; the least recently used are dropped
+    private static final int MAX_FILTERS = 1024;
+
+    private static class FilterStats {
+        final LongAdder evaluations = new LongAdder();
+        final LongAdder matches = new LongAdder();
+    }
+
+    @SuppressWarnings("serial")
+    private final Map<Object, FilterStats> filters = Collections.synchronizedMap(
+            new LinkedHashMap<Object, FilterStats>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Object, FilterStats> eldest) {
+                    return size() > MAX_FILTERS;
+                }
+            });
+
+    // share of the objects that match the filter, -1 if unknown
+    double getSelectivity(SearchFilter filter) {
+        if (SearchFilter.matchesAll(filter)) {
+            return 1;
+        }
+
+        FilterStats stats = this.filters.get(filter.getSelectivityKey());
+        if (stats == null) {
+            return -1;
+        }
+
+        long evaluations = stats.evaluations.sum();
+        if (evaluations < MIN_EVALUATIONS) {
+            return -1;
+        }
+        return Math.max(stats.matches.sum(), 1) / (double) evaluations;
+    }
+
+    // areaCount: estimated number of objects in the area, or the exact number
+    //   of matches if the filter matches all objects (see SearchFilter.matchesAll)
+    // maxResults: maximal number of results of a tree search
+    Plan plan(SearchFilter filter, double areaCount, int numObjects, int maxResults) {
+        double selectivity = getSelectivity(filter);
+        if (SearchFilter.matchesAll(filter)) {
+            // known to have too many results, so only the best are needed
+            if (areaCount <= maxResults) {
+                return Plan.TREE;
+            }
+            double areaShare = Math.min(1, areaCount / Math.max(numObjects, 1));
+            double scanCost = filter.getMaxResults() / Math.max(areaShare, 1e-9);
+            double rankedCost = RANKED_TREE_COST * filter.getMaxResults();
+            return scanCost <= rankedCost ? Plan.RANKED_SCAN : Plan.RANKED_TREE;
+        } else if (selectivity < 0 || areaCount * selectivity <= maxResults * RANKED_LIMIT) {
+            return Plan.TREE;
+        }
+
+        // Objects tested by each plan; the ranked plans look for maxResults + 1
+        // matches to return the same objects as the tree search, which tests
+        // the objects in the area until it has as many matches and then does
+        // a ranked search for the best filter.getMaxResults().
+        double wanted = Math.max(filter.getMaxResults(), maxResults + 1);
+        double areaShare = Math.min(1, areaCount / Math.max(numObjects, 1));
+        double treeCost = Math.min(areaCount, wanted / selectivity)
+                + RANKED_TREE_COST * filter.getMaxResults() / selectivity;
+        double scanCost = wanted / Math.max(areaShare * selectivity, 1e-9);
+        double rankedCost = RANKED_TREE_COST * wanted / selectivity;
+        if (treeCost <= scanCost && treeCost <= rankedCost) {
+            return Plan.TREE;
+        }
+        return scanCost <= rankedCost ? Plan.RANKED_SCAN : Plan.RANKED_TREE;
+    }
+
+    // learns the selectivity of the filter from a finished search
+    void record(SearchFilter filter, QueryStats stats) {
+        if (stats.filterEvaluations == 0 || SearchFilter.matchesAll(filter)) {
+            return;
+        }
+
+        FilterStats f = this.filters.computeIfAbsent(filter.getSelectivityKey(), k -> new FilterStats());
+        f.evaluations.add(stats.filterEvaluations);
+        f.matches.add(stats.filterMatches);
+    }
+}
@@ -0,0 +1,86 @@
+package jgeo;
+
+// Work done by a single search, returned with its SearchResult.
+public class QueryStats {
+    // how a search is done
+    public enum Plan {
+        // tree search that returns the objects unordered, with a ranked
+        // search as fallback if there are too many results
+        TREE,
+        // ranked search over the tree, see QuadTree.rankedSearch
+        RANKED_TREE,
+        // scan of all objects in rank order, see QuadTree.linearSearch
+        RANKED_SCAN
+    }
+
+    Plan plan = null;
+    long nodesVisited = 0;
+    long leavesScanned = 0;
+    long objectsTested = 0;
+    long filterEvaluations = 0;
+    long filterMatches = 0;
+    long results = 0;
+    boolean fallback = false;
+    long nanos = 0;
+
+    // tree nodes that were checked against the search area
+    public long getNodesVisited() {
+        return this.nodesVisited;
+    }
+
+    // leaves whose objects were scanned
+    public long getLeavesScanned() {
+        return this.leavesScanned;
+    }
+
+    // objects in the scanned leaves or in the rank order for a linear search
+    public long getObjectsTested() {
+        return this.objectsTested;
+    }
+
+    // calls of SearchFilter.matches
+    public long getFilterEvaluations() {
+        return this.filterEvaluations;
+    }
+
+    // plan chosen for the search or null if the search was not planned
+    public Plan getPlan() {
+        return this.plan;
+    }
+
+    // calls of SearchFilter.matches that returned true
+    public long getFilterMatches() {
+        return this.filterMatches;
+    }
+
+    public long getResults() {
+        return this.results;
+    }
+
+    // true if the tree search had too many results and the ranked or
+    // linear search was used instead
+    public boolean isFallback() {
+        return this.fallback;
+    }
+
+    public long getLatencyNanos() {
+        return this.nanos;
+    }
+
+    // adds the counters of other, e.g., of a part of a parallel search
+    synchronized void add(QueryStats other) {
+        this.nodesVisited += other.nodesVisited;
+        this.leavesScanned += other.leavesScanned;
+        this.objectsTested += other.objectsTested;
+        this.filterEvaluations += other.filterEvaluations;
+        this.filterMatches += other.filterMatches;
+    }
+
+    @Override
+    public String toString() {
+        return (this.plan != null ? this.plan + ", " : "")
+                + "nodes " + this.nodesVisited + ", leaves " + this.leavesScanned + ", objects " + this.objectsTested
+                + ", filter " + this.filterEvaluations + ", results " + this.results
+                + (this.fallback ? ", fallback" : "") + ", " + (this.nanos / 1000) + " us";
+    }
+}
@@ -0,0 +1,233 @@
+package jgeo;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+// Objects sorted by a primitive rank, smaller ranks first. Objects with the
+// same rank are ordered by an optional text key (objects without a key
+// first), and objects with the same rank and key are kept in insertion order.
+//
+// The entries are stored in blocks of sorted parallel arrays, so an insert or
+// remove only shifts entries within one block and range scans run over
+// contiguous memory.
+class RankIndex<T> extends AbstractCollection<T> {
+    private static final int BLOCK_SIZE = 512;
+
+    private static class Block {
+        final long[] ranks = new long[BLOCK_SIZE];
+        final Object[] objects = new Object[BLOCK_SIZE];
+
+        // keys of the entries; null until an entry with a key is added
+        String[] keys = null;
+        int size = 0;
+
+        long lastRank() {
+            return ranks[size - 1];
+        }
+
+        String key(int i) {
+            return keys != null ? keys[i] : null;
+        }
+    }
+
+    private final List<Block> blocks = new ArrayList<>();
+    private int size = 0;
+
+    // Maps a textual rank to a primitive rank: numbers are used as they are,
+    // other strings are ordered by their first four characters and come
+    // before all non-negative numbers. Use toKey for the exact order of
+    // strings with the same first four characters.
+    static long toRank(String rank) {
+        try {
+            return Long.parseLong(rank.trim());
+        } catch (NumberFormatException e) {
+            long res = 0;
+            for (int i = 0; i < 4; i++) {
+                res = (res << 16) | (i < rank.length() ? rank.charAt(i) : 0);
+            }
+            return res ^ Long.MIN_VALUE;
+        }
+    }
+
+    // key that orders textual ranks with the same toRank, null for numbers
+    static String toKey(String rank) {
+        try {
+            Long.parseLong(rank.trim());
+            return null;
+        } catch (NumberFormatException e) {
+            return rank;
+        }
+    }
+
+    // order of the entries by rank and key; entries without a key come first
+    static int compare(long rank1, String key1, long rank2, String key2) {
+        int res = Long.compare(rank1, rank2);
+        if (res != 0 || key1 == key2) {
+            return res;
+        } else if (key1 == null || key2 == null) {
+            return key1 == null ? -1 : 1;
+        }
+        return key1.compareTo(key2);
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    // index of the first block with a last entry >= (rank, key) (inclusive) or > (rank, key)
+    private int findBlock(long rank, String key, boolean inclusive) {
+        int lo = 0;
+        int hi = this.blocks.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            Block b = this.blocks.get(mid);
+            int c = compare(b.lastRank(), b.key(b.size - 1), rank, key);
+            if (c < 0 || (!inclusive && c == 0)) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    // index of the first entry in b >= (rank, key) (inclusive) or > (rank, key)
+    private static int findEntry(Block b, long rank, String key, boolean inclusive) {
+        int lo = 0;
+        int hi = b.size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = compare(b.ranks[mid], b.key(mid), rank, key);
+            if (c < 0 || (!inclusive && c == 0)) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    public void add(long rank, T obj) {
+        add(rank, null, obj);
+    }
+
+    // key: orders objects with the same rank, null for none
+    public void add(long rank, String key, T obj) {
+        Block b;
+        if (this.blocks.isEmpty()) {
+            b = new Block();
+            this.blocks.add(b);
+        } else {
+            // insert behind all entries with the same rank and key
+            int blockIdx = Math.min(findBlock(rank, key, false), this.blocks.size() - 1);
+            b = this.blocks.get(blockIdx);
+            if (b.size == BLOCK_SIZE) {
+                b = splitBlock(blockIdx, rank, key);
+            }
+        }
+
+        int pos = findEntry(b, rank, key, false);
+        System.arraycopy(b.ranks, pos, b.ranks, pos + 1, b.size - pos);
+        System.arraycopy(b.objects, pos, b.objects, pos + 1, b.size - pos);
+        if (b.keys == null && key != null) {
+            b.keys = new String[BLOCK_SIZE];
+        }
+        if (b.keys != null) {
+            System.arraycopy(b.keys, pos, b.keys, pos + 1, b.size - pos);
+            b.keys[pos] = key;
+        }
+        b.ranks[pos] = rank;
+        b.objects[pos] = obj;
+        b.size++;
+        this.size++;
+    }
+
+    // splits the full block at blockIdx and returns the half (rank, key) has to be added to
+    private Block splitBlock(int blockIdx, long rank, String key) {
+        Block lower = this.blocks.get(blockIdx);
+        Block upper = new Block();
+        int half = BLOCK_SIZE / 2;
+        System.arraycopy(lower.ranks, half, upper.ranks, 0, BLOCK_SIZE - half);
+        System.arraycopy(lower.objects, half, upper.objects, 0, BLOCK_SIZE - half);
+        Arrays.fill(lower.objects, half, BLOCK_SIZE, null);
+        if (lower.keys != null) {
+            upper.keys = new String[BLOCK_SIZE];
+            System.arraycopy(lower.keys, half, upper.keys, 0, BLOCK_SIZE - half);
+            Arrays.fill(lower.keys, half, BLOCK_SIZE, null);
+        }
+        upper.size = BLOCK_SIZE - half;
+        lower.size = half;
+        this.blocks.add(blockIdx + 1, upper);
+
+        return compare(rank, key, upper.ranks[0], upper.key(0)) >= 0 ? upper : lower;
+    }
+
+    // removes obj (compared by identity) that was added with the given rank
+    public boolean remove(long rank, T obj) {
+        for (int blockIdx = findBlock(rank, null, true); blockIdx < this.blocks.size(); blockIdx++) {
+            Block b = this.blocks.get(blockIdx);
+            for (int i = findEntry(b, rank, null, true); i < b.size; i++) {
+                if (b.ranks[i] != rank) {
+                    return false;
+                } else if (b.objects[i] == obj) {
+                    System.arraycopy(b.ranks, i + 1, b.ranks, i, b.size - i - 1);
+                    System.arraycopy(b.objects, i + 1, b.objects, i, b.size - i - 1);
+                    b.size--;
+                    b.objects[b.size] = null;
+                    if (b.keys != null) {
+                        System.arraycopy(b.keys, i + 1, b.keys, i, b.size - i);
+                        b.keys[b.size] = null;
+                    }
+                    this.size--;
+
+                    if (b.size == 0) {
+                        this.blocks.remove(blockIdx);
+                    }
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return iterator(Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    // objects with fromRank <= rank <= toRank in rank order
+    public Iterator<T> iterator(long fromRank, long toRank) {
+        final int firstBlock = findBlock(fromRank, null, true);
+        final int firstEntry = firstBlock < this.blocks.size()
+                ? findEntry(this.blocks.get(firstBlock), fromRank, null, true) : 0;
+
+        return new Iterator<T>() {
+            int blockIdx = firstBlock;
+            int entryIdx = firstEntry;
+
+            @Override
+            public boolean hasNext() {
+                if (blockIdx < blocks.size() && entryIdx == blocks.get(blockIdx).size) {
+                    blockIdx++;
+                    entryIdx = 0;
+                }
+                return blockIdx < blocks.size() && blocks.get(blockIdx).ranks[entryIdx] <= toRank;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return (T) blocks.get(blockIdx).objects[entryIdx++];
+            }
+        };
+    }
+}
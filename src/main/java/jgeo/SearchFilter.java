@@ -4,4 +4,40 @@ public interface SearchFilter {
     boolean matches(LocationObject location);
 
     int getMaxResults();
+
+    // true if matches() accepts every object; allows to count objects
+    // using the counts stored in the tree
+    default boolean matchesAll() {
+        return false;
+    }
+
+    // Key under which the query planner learns the share of the objects the
+    // filter matches; filters with equal keys share their statistics. By
+    // default the name of the class, so no filter instance is kept by the
+    // planner; filters whose selectivity depends on their parameters have to
+    // return a key made of their class name and these parameters, which
+    // must not refer to objects that are large or have to be collected.
+    default Object getSelectivityKey() {
+        return getClass().getName();
+    }
+
+    // Categories of the objects matches() can accept, see
+    // LocationObject.getCategories(): objects that are in none of them are
+    // skipped without calling matches(), as are whole subtrees of a QuadTree.
+    default long getCategories() {
+        return LocationObject.ALL_CATEGORIES;
+    }
+
+    // true if filter (null for all objects) accepts every object, including
+    // its categories, so that objects can be counted with the counts of nodes
+    static boolean matchesAll(SearchFilter filter) {
+        return filter == null
+                || (filter.matchesAll() && filter.getCategories() == LocationObject.ALL_CATEGORIES);
+    }
+
+    // true if obj is in one of the categories of filter (null for all objects)
+    static boolean hasCategory(SearchFilter filter, LocationObject obj) {
+        return filter == null || filter.getCategories() == LocationObject.ALL_CATEGORIES
+                || (obj.getCategories() & filter.getCategories()) != 0;
+    }
 }
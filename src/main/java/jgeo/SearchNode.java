@@ -0,0 +1,44 @@
+package jgeo;
+
+import jgeo.BoundingShape.Overlap;
+
+// Node of a quad tree as seen by the searches of TreeSearch, so that the
+// trees with different node layouts share the same traversal.
+interface SearchNode<T extends LocationObject> {
+    Overlap getOverlap(BoundingShape area);
+
+    boolean isLeaf();
+
+    // i-th child (0 to 3) of an inner node, null if there is none
+    SearchNode<T> getChild(int i);
+
+    // number of objects in this subtree
+    int getCount();
+
+    // union of the categories of the objects in this subtree, ALL_CATEGORIES
+    // if the tree does not keep track of them
+    long getCategories();
+
+    // number of objects of a leaf
+    int size();
+
+    // i-th object of a leaf
+    T getObject(int i);
+
+    // whether the i-th object of a leaf is in area
+    boolean contains(int i, BoundingShape area);
+
+    // Node of a tree that keeps the ranks of its objects, for the ranked search.
+    interface Ranked<T extends LocationObject> extends SearchNode<T> {
+        @Override
+        Ranked<T> getChild(int i);
+
+        // best (smallest) rank in this subtree
+        long getBestRank();
+
+        // rank and key (null for none) of the i-th object of a leaf, see RankIndex
+        long getRank(int i);
+
+        String getKey(int i);
+    }
+}
@@ -7,8 +7,16 @@ public class SearchResult<T extends LocationObject> {
     final public Collection<T> data;
     final public int totalHits;
 
+    // work done by the search or null if the search is not instrumented
+    final public QueryStats stats;
+
     public SearchResult(Collection<T> data, int totalHits) {
+        this(data, totalHits, null);
+    }
+
+    public SearchResult(Collection<T> data, int totalHits, QueryStats stats) {
         this.data = data;
         this.totalHits = totalHits;
+        this.stats = stats;
     }
 }
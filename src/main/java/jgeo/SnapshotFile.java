@@ -0,0 +1,37 @@
+package jgeo;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+// Writes the snapshot files of MappedQuadTree and MappedSpatialHash.
+final class SnapshotFile {
+    private SnapshotFile() {
+    }
+
+    // Maps size bytes of a temporary file next to file, fills them with
+    // writer and then renames the temporary file to file in one step, so
+    // file is either the old or the complete new snapshot even if the
+    // process dies while writing.
+    static void write(Path file, long size, Consumer<MappedByteBuffer> writer) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                writer.accept(buffer);
+                buffer.force();
+            }
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+}
@@ -1,8 +1,24 @@
 package jgeo;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * |8.9..9.0 -> 2
@@ -30,10 +46,18 @@ import java.util.List;
  */
 public class SpatialHash<E extends LocationObject> implements Iterable<E> {
 	
-	private static interface SpatialHashValue {
-		double getValueToHash();
-	}
+	// the rows are rebuilt once this many values were added or removed,
+	// or 1/16 of the values if that is more
+	private static final int MIN_COMPACTION_DELTA = 1024;
+	
+	// batches with more points are split into tasks by getParallel
+	private static final int PARALLEL_THRESHOLD = 4096;
+	
+	// length of a degree of latitude
+	private static final double METERS_PER_DEGREE_LAT = Math.toRadians(1) * LatLon.EARTH_RADIUS_METERS;
 	
+	// Maps sorted keys to the index of the last key <= value; the keys are
+	// given as the range [from, to) of an array.
 	private static class HashFunction {
 		private final double hMin;
 		private final double hMax;
@@ -41,13 +65,13 @@ public class SpatialHash<E extends LocationObject> implements Iterable<E> {
 		private final int lookupTableSize;
 		private final int[] lookupTable;
 		
-		public <T extends SpatialHashValue> HashFunction(List<T> data, double min, double max, int lookupTableSize) {
+		public HashFunction(double[] keys, int from, int to, double min, double max, int lookupTableSize) {
 			this.hMin = min;
 			this.hMax = max;
 			double delta = hMax - hMin;
 			this.lookupTableSize = lookupTableSize;
 			this.hScale = lookupTableSize / delta;
-			this.lookupTable = createLookupTable(data);
+			this.lookupTable = createLookupTable(keys, from, to);
 		}
 		
 		private int computeHashValue(double value) {
@@ -68,273 +92,1033 @@ public class SpatialHash<E extends LocationObject> implements Iterable<E> {
 			return key;
 		}
 		
-		public int hash(double d) {
-			int h = computeHashValue(d);
-			int bucket = lookupTable[h];
-			return bucket;
-		}
-		
-		private <T extends SpatialHashValue> int[] createLookupTable(List<T> data) {
+		private int[] createLookupTable(double[] keys, int from, int to) {
 			int[] res = new int[this.lookupTableSize];
-			for (int rowIdx = 0; rowIdx < data.size(); ++rowIdx) {
-				T row = data.get(rowIdx);
-				T next = rowIdx+1 < data.size() ? data.get(rowIdx + 1) : null;
-				int hRow = this.computeHashValue(row.getValueToHash());
-				int hNext = next != null ? this.computeHashValue(next.getValueToHash()) : res.length;
-				if (hRow == hNext) {
-					hRow = hNext;
-				}
+			Arrays.fill(res, from);
+			for (int idx = from; idx < to; ++idx) {
+				int hRow = this.computeHashValue(keys[idx]);
+				int hNext = idx + 1 < to ? this.computeHashValue(keys[idx + 1]) : res.length;
 				for (int h = hRow; h < hNext; ++h) {
-					res[h] = rowIdx;
+					res[h] = idx;
 				}
 			}
 			
 			return res;
 		}
 
-		public <T extends SpatialHashValue> int lookup(List<T> data, double value) {
-			int bucket = hash(value);
+		public int lookup(double[] keys, int from, double value) {
+			int bucket = this.lookupTable[computeHashValue(value)];
 			
 			// the candidate is either the correct one or above
 			// go back until correct one found if needed
-			while (bucket > 0
-				&& value < data.get(bucket - 1).getValueToHash()) {
+			while (bucket > from && value < keys[bucket - 1]) {
 				bucket--;
-			};
+			}
 			
 			return bucket;
 		}
 	}
 	
-	private static class DataCell<E extends LocationObject> implements SpatialHashValue, LocationObject {
-
-		E data;
+	// action on the range [from, to) of some array
+	private static interface RangeAction {
+		void run(int from, int to);
+	}
+	
+	// Runs action on [from, to) in chunks of at most chunkSize as fork-join
+	// tasks on pool, or at once if pool is null.
+	private static void run(ForkJoinPool pool, int from, int to, int chunkSize, RangeAction action) {
+		if (pool == null || to - from <= chunkSize) {
+			action.run(from, to);
+		} else {
+			pool.invoke(new RangeTask(from, to, chunkSize, action));
+		}
+	}
+	
+	private static class RangeTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
 		
-		DataCell(E data) {
-			this.data = data;
+		private final int from;
+		private final int to;
+		private final int chunkSize;
+		private final RangeAction action;
+		
+		RangeTask(int from, int to, int chunkSize, RangeAction action) {
+			this.from = from;
+			this.to = to;
+			this.chunkSize = chunkSize;
+			this.action = action;
 		}
-
+		
 		@Override
-		public double getValueToHash() {
-			return getLatLon().lon;
+		protected void compute() {
+			if (this.to - this.from <= this.chunkSize) {
+				this.action.run(this.from, this.to);
+				return;
+			}
+			
+			int mid = (this.from + this.to) >>> 1;
+			invokeAll(new RangeTask(this.from, mid, this.chunkSize, this.action),
+					new RangeTask(mid, this.to, this.chunkSize, this.action));
 		}
-
-		@Override
-		public LatLon getLatLon() {
-			return this.data.getLatLon();
+	}
+	
+	// Sorts idx[from, to) by keys[idx[i]]. The keys are rounded to 31 bits and
+	// sorted together with the index as primitive longs, without boxing or a
+	// comparator; indices with the same rounded key are then sorted exactly.
+	private static void sortByKey(double[] keys, int[] idx, int from, int to, boolean parallel) {
+		double min = Double.MAX_VALUE;
+		double max = -Double.MAX_VALUE;
+		for (int i = from; i < to; i++) {
+			min = Math.min(min, keys[idx[i]]);
+			max = Math.max(max, keys[idx[i]]);
+		}
+		double scale = (max > min ? 0x7FFFFFFF / (max - min) : 0);
+		
+		long[] packed = new long[to - from];
+		for (int i = from; i < to; i++) {
+			long rounded = (long) ((keys[idx[i]] - min) * scale);
+			packed[i - from] = (Math.min(rounded, 0x7FFFFFFFL) << 32) | idx[i];
+		}
+		if (parallel) {
+			Arrays.parallelSort(packed);
+		} else {
+			Arrays.sort(packed);
+		}
+		for (int i = from; i < to; i++) {
+			idx[i] = (int) packed[i - from];
+		}
+		
+		// insertion sort of the runs with the same rounded key, which are short
+		// unless the keys are equal anyway
+		int runStart = from;
+		for (int i = from + 1; i <= to; i++) {
+			if (i < to && (packed[i - from] >>> 32) == (packed[runStart - from] >>> 32)) {
+				continue;
+			}
+			for (int j = runStart + 1; j < i; j++) {
+				int v = idx[j];
+				int k = j - 1;
+				while (k >= runStart && keys[idx[k]] > keys[v]) {
+					idx[k + 1] = idx[k];
+					k--;
+				}
+				idx[k + 1] = v;
+			}
+			runStart = i;
 		}
 	}
 	
-	private class DataRow implements SpatialHashValue {
-		private final List<DataCell<E>> data = new ArrayList<>();
+	// Sorted layout of the values; immutable once built.
+	private static class Rows {
+		private final int length;
 		private final int gridSize;
-		private HashFunction hashFunction;
-		private double latMin = Double.MAX_VALUE;
-		private double latMax = -Double.MAX_VALUE;
-
-		public DataRow(int gridSize) {
-			this.gridSize = gridSize;
+		
+		// the values by row and sorted by longitude within a row; there are no
+		// per value objects besides the values themselves
+		private final Object[] values;
+		private final double[] lons;
+		
+		// row r has the values [rowStart[r], rowStart[r + 1]) with latitudes
+		// between rowLatMin[r] and rowLatMax[r]
+		private final int numRows;
+		private final int[] rowStart;
+		private final double[] rowLatMin;
+		private final double[] rowLatMax;
+		
+		// longitude -> index of a value, per row
+		private final HashFunction[] rowHashFunctions;
+		
+		// latitude -> row
+		private final HashFunction hashFunction;
+		
+		// Sorts data by latitude and by longitude within a row; the sort and
+		// the initialization of the rows run on pool if it is not null.
+		Rows(List<? extends LocationObject> data, ForkJoinPool pool) {
+			this.length = data.size();
+			this.gridSize = ((int)Math.sqrt(this.length - 1)) + 1;	// -1 / +1 to round up
+			this.values = new Object[this.length];
+			this.lons = new double[this.length];
+			
+			this.numRows = (this.length + this.gridSize - 1) / this.gridSize;
+			this.rowStart = new int[this.numRows + 1];
+			this.rowLatMin = new double[this.numRows];
+			this.rowLatMax = new double[this.numRows];
+			this.rowHashFunctions = new HashFunction[this.numRows];
+			
+			// coordinates in primitive arrays, so that the sorts do not touch the values
+			Object[] in = data.toArray();
+			double[] lats = new double[this.length];
+			double[] inLons = new double[this.length];
+			run(pool, 0, this.length, PARALLEL_THRESHOLD, (from, to) -> {
+				for (int i = from; i < to; i++) {
+					LatLon p = ((LocationObject) in[i]).getLatLon();
+					lats[i] = p.lat;
+					inLons[i] = p.lon;
+				}
+			});
+			
+			int[] byLat = new int[this.length];
+			for (int i = 0; i < this.length; i++) {
+				byLat[i] = i;
+			}
+			sortByKey(lats, byLat, 0, this.length, pool != null);
+			
+			int rowsPerTask = Math.max(1, PARALLEL_THRESHOLD / this.gridSize);
+			run(pool, 0, this.numRows, rowsPerTask, (from, to) -> {
+				for (int r = from; r < to; r++) {
+					initRow(r, in, lats, inLons, byLat);
+				}
+			});
+			this.rowStart[this.numRows] = this.length;
+			
+			double min = this.numRows > 0 ? this.rowLatMin[0] : 0;
+			double max = this.numRows > 0 ? this.rowLatMax[this.numRows - 1] : 0;
+			this.hashFunction = new HashFunction(this.rowLatMin, 0, this.numRows, min, max, this.gridSize * 10);
 		}
-
-		public void add(E e) {
-			LatLon p = e.getLatLon();
-			if (p.lat < this.latMin) {
-				this.latMin = p.lat;
+		
+		// fills row r from the values byLat[from, to) of the input, which are sorted by latitude
+		private void initRow(int r, Object[] in, double[] lats, double[] inLons, int[] byLat) {
+			int from = r * this.gridSize;
+			int to = Math.min(from + this.gridSize, this.length);
+			this.rowLatMin[r] = lats[byLat[from]];
+			this.rowLatMax[r] = lats[byLat[to - 1]];
+			
+			sortByKey(inLons, byLat, from, to, false);
+			for (int i = from; i < to; i++) {
+				this.values[i] = in[byLat[i]];
+				this.lons[i] = inLons[byLat[i]];
 			}
-			if (p.lat > this.latMax) {
-			    this.latMax = p.lat;
+			this.rowStart[r] = from;
+			this.rowHashFunctions[r] = new HashFunction(this.lons, from, to,
+					this.lons[from], this.lons[to - 1], this.gridSize);
+		}
+		
+		// first value of row with a longitude of at least lon, or the one before
+		int firstValue(int row, double lon) {
+			int col = this.rowHashFunctions[row].lookup(this.lons, this.rowStart[row], lon);
+			while (col > this.rowStart[row] && this.lons[col - 1] >= lon) {
+				col--;
 			}
-			this.data.add(new DataCell<>(e));
+			return col;
 		}
-
-		@Override
-		public double getValueToHash() {
-			return latMin;
+		
+		// last value of row with a longitude of at most lon, or the one after
+		int lastValue(int row, double lon) {
+			return this.rowHashFunctions[row].lookup(this.lons, this.rowStart[row], lon);
 		}
-
-        public void init() {
-            LocationObject.sortByLon(data);
-            double min = this.data.get(0).data.getLatLon().lon;
-            double max = this.data.get(this.data.size() - 1).data.getLatLon().lon;
-            this.hashFunction = new HashFunction(this.data, min, max, this.gridSize);
-        }
-
-        public void get(List<E> res, BoundingShape bb) {
-            LatLon ll = bb.getLowerLeft();
-            LatLon ur = bb.getUpperRight();
-            
-            int bucketMin = this.hashFunction.lookup(this.data, ll.lon);
-            int bucketMax = this.hashFunction.lookup(this.data, ur.lon);
-            for (int col = bucketMin; col <= bucketMax; col++) {
-                E e = this.data.get(col).data;
-                if (bb.contains(e.getLatLon())) {
-                    res.add(e);
-                }
-            }
-        }
-
-        public E get(LatLon at) {
-            int bucket = this.hashFunction.lookup(this.data, at.lon);
-            int bucketMin = Math.max(bucket - 1, 0);
-            int bucketMax = Math.min(bucket + 1, this.data.size() - 1);
-            
-            E res = null;
-            double distMin = Double.MAX_VALUE;
-            for (int col = bucketMin; col <= bucketMax; col++) {
-                E e = this.data.get(col).data;
-                double dist = e.getLatLon().getDistanceInMeters(at);
-                if (dist < distMin) {
-                    distMin = dist;
-                    res = e;
-                }
-            }
-            
-            return res;
-        }
-	}
-	
-	private final int length;
-	private final BoundingShape bb;
-	private final int gridSize;
-	private final List<DataRow> rows = new ArrayList<>();
-	private HashFunction hashFunction;
+		
+		// row with the largest latMin <= lat, or the first row
+		int lastRow(double lat) {
+			return this.hashFunction.lookup(this.rowLatMin, 0, lat);
+		}
+	}
 	
-	public SpatialHash(List<E> data) {
-		this.length = data.size();
-		this.bb = new BoundingBox(data);
-		this.gridSize = ((int)Math.sqrt(this.length - 1)) + 1;	// -1 / +1 to round up
+	// Values added to and removed from a row since the rows were built;
+	// immutable, changes create a new RowDelta.
+	private static class RowDelta {
+		private static final RowDelta EMPTY = new RowDelta(new Object[0], 0, new int[0],
+				Double.MAX_VALUE, -Double.MAX_VALUE);
+		
+		// The added values are added[0, numAdded). The array grows by doubling
+		// and is shared with the delta it was appended to: add writes the next
+		// slot in place if no other delta has used it yet, which does not change
+		// the values seen by the states that are already published.
+		private final Object[] added;
+		private final int numAdded;
+		
+		// sorted indices of the removed values of Rows
+		private final int[] removed;
+		
+		// latitude range of the added values
+		private final double latMin;
+		private final double latMax;
+		
+		private RowDelta(Object[] added, int numAdded, int[] removed, double latMin, double latMax) {
+			this.added = added;
+			this.numAdded = numAdded;
+			this.removed = removed;
+			this.latMin = latMin;
+			this.latMax = latMax;
+		}
+		
+		boolean isRemoved(int idx) {
+			return this.removed.length > 0 && Arrays.binarySearch(this.removed, idx) >= 0;
+		}
+		
+		// only called by the thread that holds the lock of the hash
+		RowDelta add(LocationObject e) {
+			Object[] added = this.added;
+			if (this.numAdded == added.length || added[this.numAdded] != null) {
+				added = Arrays.copyOf(added, Math.max(4, this.numAdded * 2));
+				Arrays.fill(added, this.numAdded, added.length, null);
+			}
+			added[this.numAdded] = e;
+			double lat = e.getLatLon().lat;
+			return new RowDelta(added, this.numAdded + 1, this.removed,
+					Math.min(this.latMin, lat), Math.max(this.latMax, lat));
+		}
 		
-		init(data);
+		RowDelta removeAdded(int i) {
+			Object[] added = new Object[this.added.length];
+			System.arraycopy(this.added, 0, added, 0, i);
+			System.arraycopy(this.added, i + 1, added, i, this.numAdded - i - 1);
+			return new RowDelta(added, this.numAdded - 1, this.removed, this.latMin, this.latMax);
+		}
+		
+		RowDelta remove(int idx) {
+			int pos = -Arrays.binarySearch(this.removed, idx) - 1;
+			int[] removed = new int[this.removed.length + 1];
+			System.arraycopy(this.removed, 0, removed, 0, pos);
+			removed[pos] = idx;
+			System.arraycopy(this.removed, pos, removed, pos + 1, this.removed.length - pos);
+			return new RowDelta(this.added, this.numAdded, removed, this.latMin, this.latMax);
+		}
 	}
 	
-	private void init(List<E> data) {
-		LocationObject.sortByLat(data);
-		store(data);
+	// The rows with their deltas. A state is never modified, add and remove
+	// publish a new one, so readers search a consistent version without locks.
+	//
+	// The deltas are kept in chunks of about sqrt(numRows) rows, so a change
+	// only copies the chunk of its row and the array of the chunks instead of
+	// the deltas of all rows.
+	private static class State {
+		private final Rows rows;
+		private final RowDelta[][] deltas;
+		private final int chunkBits;
+		private final int size;
+		
+		// number of added and removed values in deltas
+		private final int deltaSize;
+		
+		State(Rows rows) {
+			this.rows = rows;
+			this.chunkBits = (33 - Integer.numberOfLeadingZeros(Math.max(rows.numRows - 1, 1))) / 2;
+			int chunkSize = 1 << this.chunkBits;
+			this.deltas = new RowDelta[(rows.numRows + chunkSize - 1) >>> this.chunkBits][];
+			for (int c = 0; c < this.deltas.length; c++) {
+				this.deltas[c] = new RowDelta[chunkSize];
+				Arrays.fill(this.deltas[c], RowDelta.EMPTY);
+			}
+			this.size = rows.length;
+			this.deltaSize = 0;
+		}
+		
+		private State(Rows rows, RowDelta[][] deltas, int chunkBits, int size, int deltaSize) {
+			this.rows = rows;
+			this.deltas = deltas;
+			this.chunkBits = chunkBits;
+			this.size = size;
+			this.deltaSize = deltaSize;
+		}
+		
+		RowDelta delta(int row) {
+			return this.deltas[row >>> this.chunkBits][row & ((1 << this.chunkBits) - 1)];
+		}
+		
+		// copy of this state with delta as the delta of row
+		private State with(int row, RowDelta delta, int size) {
+			RowDelta[][] deltas = this.deltas.clone();
+			int c = row >>> this.chunkBits;
+			deltas[c] = deltas[c].clone();
+			deltas[c][row & ((1 << this.chunkBits) - 1)] = delta;
+			return new State(this.rows, deltas, this.chunkBits, size, this.deltaSize + 1);
+		}
+		
+		double latMin(int row) {
+			return Math.min(this.rows.rowLatMin[row], delta(row).latMin);
+		}
+		
+		double latMax(int row) {
+			return Math.max(this.rows.rowLatMax[row], delta(row).latMax);
+		}
+		
+		// First row that may contain values with a latitude of at least lat. The
+		// lookup returns the row with the largest latMin <= lat, but values of the
+		// previous rows can reach up to lat as well.
+		int firstRow(double lat) {
+			int row = this.rows.lastRow(lat);
+			while (row > 0 && latMax(row - 1) >= lat) {
+				row--;
+			}
+			return row;
+		}
+		
+		// last row that may contain values with a latitude of at most lat
+		int lastRow(double lat) {
+			return this.rows.lastRow(lat);
+		}
+		
+		// all values that are currently in the hash
+		List<LocationObject> getAll() {
+			List<LocationObject> res = new ArrayList<>(this.size);
+			for (int r = 0; r < this.rows.numRows; r++) {
+				RowDelta delta = delta(r);
+				for (int i = this.rows.rowStart[r]; i < this.rows.rowStart[r + 1]; i++) {
+					if (!delta.isRemoved(i)) {
+						res.add((LocationObject) this.rows.values[i]);
+					}
+				}
+				for (int i = 0; i < delta.numAdded; i++) {
+					res.add((LocationObject) delta.added[i]);
+				}
+			}
+			return res;
+		}
+		
+		State add(LocationObject e) {
+			if (this.rows.numRows == 0) {
+				List<LocationObject> data = new ArrayList<>();
+				data.add(e);
+				return new State(new Rows(data, null));
+			}
+			
+			// the row that would store e if the rows were built now
+			int row = this.rows.lastRow(e.getLatLon().lat);
+			return with(row, delta(row).add(e), this.size + 1);
+		}
 		
-		double min = bb.getLowerLeft().lat;
-		double max = bb.getUpperRight().lat;
-		this.hashFunction = new HashFunction(this.rows, min, max, this.gridSize * 10);
+		// returns null if e is not in the hash
+		State remove(LocationObject e) {
+			if (this.rows.numRows == 0) {
+				return null;
+			}
+			
+			LatLon p = e.getLatLon();
+			int rowMax = lastRow(p.lat);
+			for (int r = firstRow(p.lat); r <= rowMax; r++) {
+				RowDelta delta = delta(r);
+				RowDelta changed = null;
+				int colMax = this.rows.lastValue(r, p.lon);
+				for (int col = this.rows.firstValue(r, p.lon); col <= colMax && changed == null; col++) {
+					if (this.rows.values[col] == e && !delta.isRemoved(col)) {
+						changed = delta.remove(col);
+					}
+				}
+				for (int i = 0; i < delta.numAdded && changed == null; i++) {
+					if (delta.added[i] == e) {
+						changed = delta.removeAdded(i);
+					}
+				}
+				
+				if (changed != null) {
+					return with(r, changed, this.size - 1);
+				}
+			}
+			return null;
+		}
 	}
 	
-	public List<E> get(BoundingShape bb) {
-		int rowMin = this.hashFunction.lookup(this.rows, bb.getLowerLeft().lat);
-		int rowMax = this.hashFunction.lookup(this.rows, bb.getUpperRight().lat);
+	// a change made while the rows are rebuilt in the background
+	private static class Change {
+		final LocationObject value;
+		final boolean add;
 		
+		Change(LocationObject value, boolean add) {
+			this.value = value;
+			this.add = add;
+		}
+	}
+	
+	private volatile State state;
+	
+	// runs the compactions
+	private final Executor executor;
+	
+	// builds the rows in parallel, null to build them sequentially
+	private final ForkJoinPool pool;
+	
+	// changes since the start of the running compaction, null if there is none
+	private List<Change> changes = null;
+	
+	public SpatialHash(List<E> data) {
+		this(data, ForkJoinPool.commonPool());
+	}
+	
+	// executor: runs the compactions after add and remove; the rows are built
+	// on the calling thread even if executor is a ForkJoinPool
+	public SpatialHash(List<E> data, Executor executor) {
+		this(data, executor, null);
+	}
+	
+	private SpatialHash(List<E> data, Executor executor, ForkJoinPool pool) {
+		this.state = new State(new Rows(data, pool));
+		this.executor = executor;
+		this.pool = pool;
+	}
+	
+	// Builds the rows in parallel on pool: the values are sorted by primitive
+	// keys with a parallel sort, and the rows with their lookup tables are
+	// initialized by fork-join tasks. Compactions are run on pool as well.
+	public static <E extends LocationObject> SpatialHash<E> buildParallel(List<E> data, ForkJoinPool pool) {
+		return new SpatialHash<E>(data, pool, pool);
+	}
+	
+	// Adds e; it is stored in a small delta of its row which the searches
+	// merge in until the rows are rebuilt in the background.
+	public void add(E e) {
+		change(new Change(e, true));
+	}
+	
+	// Removes e, which has to be at the position it had when it was added.
+	// Returns false if e is not in the hash.
+	public boolean remove(E e) {
+		return change(new Change(e, false));
+	}
+	
+	private boolean change(Change change) {
+		State start;
+		synchronized (this) {
+			State s = apply(this.state, change);
+			if (s == null) {
+				return false;
+			}
+			this.state = s;
+			if (this.changes != null) {
+				this.changes.add(change);
+				return true;
+			} else if (s.deltaSize <= Math.max(MIN_COMPACTION_DELTA, s.rows.length / 16)) {
+				return true;
+			}
+			
+			this.changes = new ArrayList<>();
+			start = s;
+		}
+		
+		boolean submitted = false;
+		try {
+			this.executor.execute(() -> compact(start));
+			submitted = true;
+		} catch (RejectedExecutionException ex) {
+			// the change is applied anyway, a later change starts the compaction
+		} finally {
+			if (!submitted) {
+				synchronized (this) {
+					this.changes = null;
+				}
+			}
+		}
+		return true;
+	}
+	
+	private static State apply(State s, Change change) {
+		return change.add ? s.add(change.value) : s.remove(change.value);
+	}
+	
+	// Rebuilds the rows without the deltas of start and then applies the
+	// changes made in the meantime.
+	private void compact(State start) {
+		Rows rows = null;
+		try {
+			rows = new Rows(start.getAll(), this.pool);
+		} finally {
+			synchronized (this) {
+				if (rows != null) {
+					State s = new State(rows);
+					for (Change change : this.changes) {
+						State changed = apply(s, change);
+						s = (changed != null ? changed : s);
+					}
+					this.state = s;
+				}
+				this.changes = null;
+			}
+		}
+	}
+	
+	// Rebuilds the rows now, so that searches do not have to merge in any
+	// deltas; add and remove call this in the background when needed.
+	public synchronized void compact() {
+		if (this.state.deltaSize > 0) {
+			this.state = new State(new Rows(this.state.getAll(), this.pool));
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <E> E get(State s, int idx) {
+		return (E) s.rows.values[idx];
+	}
+	
+	public List<E> get(BoundingShape bb) {
+		State s = this.state;
 		List<E> res = new ArrayList<>();
-		for (int r = rowMin; r <= rowMax; r++) {
-			this.rows.get(r).get(res, bb);
+		if (s.rows.numRows == 0) {
+			return res;
+		}
+		
+		LatLon ll = bb.getLowerLeft();
+		LatLon ur = bb.getUpperRight();
+		int rowMax = s.lastRow(ur.lat);
+		for (int r = s.firstRow(ll.lat); r <= rowMax; r++) {
+			RowDelta delta = s.delta(r);
+			if (ll.lon <= ur.lon) {
+				get(res, s, delta, bb, s.rows.firstValue(r, ll.lon), s.rows.lastValue(r, ur.lon));
+			} else {
+				// across +/-180 deg.
+				get(res, s, delta, bb, s.rows.firstValue(r, ll.lon), s.rows.rowStart[r + 1] - 1);
+				get(res, s, delta, bb, s.rows.rowStart[r], s.rows.lastValue(r, ur.lon));
+			}
+			for (int i = 0; i < delta.numAdded; i++) {
+				@SuppressWarnings("unchecked")
+				E e = (E) delta.added[i];
+				if (bb.contains(e.getLatLon())) {
+					res.add(e);
+				}
+			}
 		}
 		return res;
 	}
 	
-	// get the value closest to at 
-    public E get(LatLon at) {
-        // This method first checks the row this coordinate would be stored in.
-        // As this value might have a big horizontal distance, we then expand  
-        // the search to neighbor rows that may contain other values that are 
-        // closer due to a small horizontal distance.
-        //
-        // So in the worst case, this means we have to go through all rows, which
-        // is O(sqrt(n)).
-        
-        if (this.rows.size() == 0) {
-            return null;
-        }
-        
-        // Compute the vertical distance between two points on the same longitude
-        // with a distance of one degree so that we can use that conversion later
-        // to speed up measurements.
-        double latToMeter = at.getDistanceInMeters(new LatLon(at.lat + 1, at.lon));
-
-        // get the closest row
-        int row_idx = this.hashFunction.lookup(this.rows, at.lat);
-        
-        // get the best value in this row
-        E res = this.rows.get(row_idx).get(at);
-        double distMin = res.getLatLon().getDistanceInMeters(at);
-        
-        // now look for closer values in the neighbor-rows until they can't be any closer
-        for (int r = row_idx + 1; r < this.rows.size(); r++) {
-            // check if the value with the smallest latitude in that row could be closer than res
-            DataRow row = this.rows.get(r);
-            double distRowLat = row.latMin - at.lat;
-            double distRow = distRowLat * latToMeter;
-            if (distRow >= distMin) {
-                break;
-            }
-
-            // might be closer, so check the closest value of that row
-            E e = row.get(at);
-            double dist = e.getLatLon().getDistanceInMeters(at);
-            if (dist < distMin) {
-                distMin = dist;
-                res = e;
-            }
-        }
-        
-        // same for the rows below
-        for (int r = row_idx - 1; r >= 0; r--) {
-            // check if the value with the biggest latitude in that row could be closer than res
-            DataRow row = this.rows.get(r);
-            double distRowLat = at.lat - row.latMax;
-            double distRow = distRowLat * latToMeter;
-            if (distRow >= distMin) {
-                break;
-            }
-
-            // might be closer, so check the closest value of that row
-            E e = row.get(at);
-            double dist = e.getLatLon().getDistanceInMeters(at);
-            if (dist < distMin) {
-                distMin = dist;
-                res = e;
-            }
-        }
-        
-        return res;
-    }
+	// adds the values of Rows in [col, colMax] that are in bb and not removed
+	private void get(List<E> res, State s, RowDelta delta, BoundingShape bb, int col, int colMax) {
+		for (; col <= colMax; col++) {
+			E e = get(s, col);
+			if (bb.contains(e.getLatLon()) && !delta.isRemoved(col)) {
+				res.add(e);
+			}
+		}
+	}
+	
+	// Same as get(bb) but returns the values lazily, so a consumer can stop
+	// early without the rest of the area being scanned.
+	public Stream<E> stream(BoundingShape bb) {
+		return StreamSupport.stream(new AreaSpliterator(bb), false);
+	}
+	
+	private class AreaSpliterator extends Spliterators.AbstractSpliterator<E> {
+		private final State s = state;
+		private final BoundingShape bb;
+		private int row = -1;
+		private int rowMax = -1;
+		private int col = 0;
+		private int colMax = -1;
+		
+		// values of the row from the start up to wrapColMax if the area is
+		// across +/-180 deg. and these values were not visited yet
+		private boolean wrap = false;
+		private int wrapColMax = -1;
+		
+		// index of the next added value of the row once col > colMax
+		private int added = Integer.MAX_VALUE;
+		
+		AreaSpliterator(BoundingShape bb) {
+			super(Long.MAX_VALUE, Spliterator.NONNULL);
+			this.bb = bb;
+		}
 
-	private void store(List<E> data) {
-		int i = 0;
-		DataRow currentRow = null;
-		for (E e : data) {
-			if (i % gridSize == 0) {
-				currentRow = new DataRow(gridSize);
-				this.rows.add(currentRow);
+		@SuppressWarnings("unchecked")
+		@Override
+		public boolean tryAdvance(Consumer<? super E> action) {
+			if (this.row < 0) {
+				if (s.rows.numRows == 0) {
+					return false;
+				}
+				this.row = s.firstRow(this.bb.getLowerLeft().lat) - 1;
+				this.rowMax = s.lastRow(this.bb.getUpperRight().lat);
 			}
 			
-			currentRow.add(e);
-			i++;
+			while (true) {
+				// next row
+				while (this.col > this.colMax && this.added >= s.delta(Math.max(this.row, 0)).numAdded) {
+					if (this.wrap) {
+						this.wrap = false;
+						this.col = s.rows.rowStart[this.row];
+						this.colMax = this.wrapColMax;
+						continue;
+					} else if (this.row >= this.rowMax) {
+						return false;
+					}
+					
+					this.row++;
+					LatLon ll = this.bb.getLowerLeft();
+					LatLon ur = this.bb.getUpperRight();
+					this.col = s.rows.firstValue(this.row, ll.lon);
+					this.wrap = (ll.lon > ur.lon);
+					if (this.wrap) {
+						this.colMax = s.rows.rowStart[this.row + 1] - 1;
+						this.wrapColMax = s.rows.lastValue(this.row, ur.lon);
+					} else {
+						this.colMax = s.rows.lastValue(this.row, ur.lon);
+					}
+					this.added = 0;
+				}
+				
+				E e;
+				if (this.col <= this.colMax) {
+					int idx = this.col++;
+					if (s.delta(this.row).isRemoved(idx)) {
+						continue;
+					}
+					e = get(s, idx);
+				} else {
+					e = (E) s.delta(this.row).added[this.added++];
+				}
+				if (this.bb.contains(e.getLatLon())) {
+					action.accept(e);
+					return true;
+				}
+			}
+		}
+	}
+	
+	// get the value closest to at 
+	public E get(LatLon at) {
+		// This method first checks the row this coordinate would be stored in.
+		// As this value might have a big horizontal distance, we then expand
+		// the search to neighbor rows that may contain other values that are
+		// closer due to a small horizontal distance. Within a row, the values
+		// are checked outward from the longitude of at until the longitude
+		// difference alone makes them farther away than the closest value so
+		// far, so the result is exact.
+		//
+		// So in the worst case, this means we have to go through all rows, which
+		// is O(sqrt(n)).
+		
+		Candidates<E> candidates = new Candidates<>(1, Double.MAX_VALUE);
+		search(this.state, at, candidates);
+		return candidates.first();
+	}
+	
+	// a value with its distance for nearest and withinRadius
+	private static class Candidate<E> implements Comparable<Candidate<E>> {
+		final E value;
+		final double dist;
+		
+		Candidate(E value, double dist) {
+			this.value = value;
+			this.dist = dist;
 		}
 		
-		for (DataRow row : this.rows) {
-			row.init();
+		@Override
+		public int compareTo(Candidate<E> o) {
+			return Double.compare(this.dist, o.dist);
 		}
 	}
-
+	
+	// The k closest values within radius seen so far, in a heap with the
+	// farthest of them on top.
+	private static class Candidates<E extends LocationObject> {
+		private final int k;
+		private final double radius;
+		private final PriorityQueue<Candidate<E>> heap = new PriorityQueue<>(Collections.reverseOrder());
+		
+		Candidates(int k, double radius) {
+			this.k = k;
+			this.radius = radius;
+		}
+		
+		// values farther away than this can be skipped
+		double bound() {
+			return this.heap.size() < this.k ? this.radius : Math.min(this.radius, this.heap.peek().dist);
+		}
+		
+		// true if values at lon may be within the bound of values at atLon,
+		// where both have cos(lat) >= cosLat
+		boolean isNear(double atLon, double lon, double cosLat) {
+			return LatLon.getMinDistance(atLon, lon, cosLat) <= bound();
+		}
+		
+		void offer(E e, LatLon at) {
+			double dist = e.getLatLon().getDistanceInMeters(at);
+			if (dist > this.radius) {
+				return;
+			} else if (this.heap.size() < this.k) {
+				this.heap.add(new Candidate<>(e, dist));
+			} else if (dist < this.heap.peek().dist) {
+				this.heap.poll();
+				this.heap.add(new Candidate<>(e, dist));
+			}
+		}
+		
+		void clear() {
+			this.heap.clear();
+		}
+		
+		// the closest value, null if there is none
+		E first() {
+			E res = null;
+			double dist = Double.MAX_VALUE;
+			for (Candidate<E> c : this.heap) {
+				if (c.dist < dist) {
+					dist = c.dist;
+					res = c.value;
+				}
+			}
+			return res;
+		}
+		
+		// the values ordered by distance
+		List<E> toList() {
+			List<Candidate<E>> sorted = new ArrayList<>(this.heap);
+			Collections.sort(sorted);
+			List<E> res = new ArrayList<>(sorted.size());
+			for (Candidate<E> c : sorted) {
+				res.add(c.value);
+			}
+			return res;
+		}
+	}
+	
+	// the k values closest to at, ordered by distance
+	public List<E> nearest(LatLon at, int k) {
+		Candidates<E> candidates = new Candidates<>(k, Double.MAX_VALUE);
+		if (k > 0) {
+			search(this.state, at, candidates);
+		}
+		return candidates.toList();
+	}
+	
+	// all values within meters of at, ordered by distance
+	public List<E> withinRadius(LatLon at, double meters) {
+		Candidates<E> candidates = new Candidates<>(Integer.MAX_VALUE, meters);
+		search(this.state, at, candidates);
+		return candidates.toList();
+	}
+	
+	// Rows are searched outward from the row of at until the latitude
+	// difference alone makes their values farther away than the bound of
+	// the candidates, which shrinks as closer values are found.
+	private static <E extends LocationObject> void search(State s, LatLon at, Candidates<E> candidates) {
+		if (s.rows.numRows == 0) {
+			return;
+		}
+		
+		search(s, s.lastRow(at.lat), at, candidates);
+	}
+	
+	// search starting at row rowIdx, which should be the row of at
+	private static <E extends LocationObject> void search(State s, int rowIdx, LatLon at,
+			Candidates<E> candidates) {
+		searchRow(s, rowIdx, at, candidates);
+		for (int r = rowIdx + 1; r < s.rows.numRows
+				&& (s.latMin(r) - at.lat) * METERS_PER_DEGREE_LAT <= candidates.bound(); r++) {
+			searchRow(s, r, at, candidates);
+		}
+		for (int r = rowIdx - 1; r >= 0 && (at.lat - s.latMax(r)) * METERS_PER_DEGREE_LAT <= candidates.bound(); r--) {
+			searchRow(s, r, at, candidates);
+		}
+	}
+	
+	// Returns the values closest to points, in the order of points. The points
+	// are sorted by latitude and swept through the rows: the row of a point
+	// is found from the row of the previous one, and the value closest to the
+	// previous point bounds the search for the next one from the start.
+	public List<E> get(LatLon[] points) {
+		State s = this.state;
+		@SuppressWarnings("unchecked")
+		E[] res = (E[]) new LocationObject[points.length];
+		sweep(s, points, sortByLat(points, false), 0, points.length, res);
+		return Arrays.asList(res);
+	}
+	
+	// Same as get(LatLon[]), but bands of latitude are swept by fork-join tasks.
+	public List<E> getParallel(LatLon[] points) {
+		return getParallel(points, ForkJoinPool.commonPool());
+	}
+	
+	public List<E> getParallel(LatLon[] points, ForkJoinPool pool) {
+		State s = this.state;
+		@SuppressWarnings("unchecked")
+		E[] res = (E[]) new LocationObject[points.length];
+		pool.invoke(new SweepTask<E>(s, points, sortByLat(points, true), 0, points.length, res));
+		return Arrays.asList(res);
+	}
+	
+	// indices of points ordered by latitude, see sortByKey
+	static int[] sortByLat(LatLon[] points, boolean parallel) {
+		double[] lats = new double[points.length];
+		int[] order = new int[points.length];
+		for (int i = 0; i < points.length; i++) {
+			lats[i] = Math.max(-90, Math.min(90, points[i].lat));
+			order[i] = i;
+		}
+		sortByKey(lats, order, 0, points.length, parallel);
+		return order;
+	}
+	
+	// stores the closest value of the points order[from] to order[to - 1] in res
+	private static <E extends LocationObject> void sweep(State s, LatLon[] points, int[] order, int from, int to,
+			E[] res) {
+		if (s.size == 0 || from >= to) {
+			return;
+		}
+		
+		Candidates<E> candidates = new Candidates<>(1, Double.MAX_VALUE);
+		int row = s.lastRow(points[order[from]].lat);
+		E last = null;
+		for (int i = from; i < to; i++) {
+			LatLon at = points[order[i]];
+			while (row + 1 < s.rows.numRows && s.rows.rowLatMin[row + 1] <= at.lat) {
+				row++;
+			}
+			
+			candidates.clear();
+			if (last != null) {
+				candidates.offer(last, at);
+			}
+			search(s, row, at, candidates);
+			last = candidates.first();
+			res[order[i]] = last;
+		}
+	}
+	
+	// sweeps the points order[from] to order[to - 1], split into bands of latitude
+	private static class SweepTask<E extends LocationObject> extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		private final State s;
+		private final LatLon[] points;
+		private final int[] order;
+		private final int from;
+		private final int to;
+		private final E[] res;
+		
+		SweepTask(State s, LatLon[] points, int[] order, int from, int to, E[] res) {
+			this.s = s;
+			this.points = points;
+			this.order = order;
+			this.from = from;
+			this.to = to;
+			this.res = res;
+		}
+		
+		@Override
+		protected void compute() {
+			if (this.to - this.from <= PARALLEL_THRESHOLD) {
+				sweep(this.s, this.points, this.order, this.from, this.to, this.res);
+				return;
+			}
+			
+			int mid = (this.from + this.to) >>> 1;
+			invokeAll(new SweepTask<E>(this.s, this.points, this.order, this.from, mid, this.res),
+					new SweepTask<E>(this.s, this.points, this.order, mid, this.to, this.res));
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <E extends LocationObject> void offer(State s, int row, int idx, LatLon at,
+			Candidates<E> candidates) {
+		if (!s.delta(row).isRemoved(idx)) {
+			candidates.offer((E) s.rows.values[idx], at);
+		}
+	}
+	
+	// Offers the values of row to the candidates. Starting at the longitude
+	// of at, the values are checked to both sides until the longitude
+	// difference alone makes them farther away than the bound.
+	@SuppressWarnings("unchecked")
+	private static <E extends LocationObject> void searchRow(State s, int row, LatLon at, Candidates<E> candidates) {
+		RowDelta delta = s.delta(row);
+		double[] lons = s.rows.lons;
+		int start = s.rows.rowStart[row];
+		int end = s.rows.rowStart[row + 1];
+		
+		// first value with a longitude of at least at.lon
+		int pos = s.rows.firstValue(row, at.lon);
+		if (pos < end && lons[pos] < at.lon) {
+			pos++;
+		}
+		
+		// all values of the row and at are at least this close to the equator
+		double latAbs = Math.max(Math.abs(at.lat), Math.max(Math.abs(s.latMin(row)), Math.abs(s.latMax(row))));
+		double cosLat = Math.cos(Math.toRadians(Math.min(90, latAbs)));
+		
+		int right = pos;
+		while (right < end && candidates.isNear(at.lon, lons[right], cosLat)) {
+			offer(s, row, right++, at, candidates);
+		}
+		int left = pos - 1;
+		while (left >= start && candidates.isNear(at.lon, lons[left], cosLat)) {
+			offer(s, row, left--, at, candidates);
+		}
+		
+		// values at the other end of the row may be close across +/-180 deg.
+		for (int i = end - 1; i >= right && candidates.isNear(at.lon, lons[i], cosLat); i--) {
+			offer(s, row, i, at, candidates);
+		}
+		for (int i = start; i <= left && candidates.isNear(at.lon, lons[i], cosLat); i++) {
+			offer(s, row, i, at, candidates);
+		}
+		
+		for (int i = 0; i < delta.numAdded; i++) {
+			candidates.offer((E) delta.added[i], at);
+		}
+	}
+	
 	public int size() {
-		return this.length;
+		return this.state.size;
 	}
 	
-	private E get(int idx) {
-		int row = idx / this.gridSize;
-		int col = idx % this.gridSize;
-		return this.rows.get(row).data.get(col).data;
+	// Writes the hash to a snapshot file that can be opened with
+	// MappedSpatialHash.open; values are stored by the id returned by idFunction.
+	public void writeSnapshot(Path file, ToLongFunction<? super E> idFunction) throws IOException {
+		State s = this.state;
+		Rows rows = (s.deltaSize == 0 ? s.rows : new Rows(s.getAll(), this.pool));
+		
+		double[] rowBounds = new double[2 * rows.numRows];
+		int[] rowRanges = new int[2 * rows.numRows];
+		double[] lats = new double[rows.length];
+		long[] ids = new long[rows.length];
+		
+		for (int r = 0; r < rows.numRows; r++) {
+			rowBounds[2 * r] = rows.rowLatMin[r];
+			rowBounds[2 * r + 1] = rows.rowLatMax[r];
+			rowRanges[2 * r] = rows.rowStart[r];
+			rowRanges[2 * r + 1] = rows.rowStart[r + 1];
+		}
+		for (int i = 0; i < rows.length; i++) {
+			@SuppressWarnings("unchecked")
+			E e = (E) rows.values[i];
+			lats[i] = e.getLatLon().lat;
+			ids[i] = idFunction.applyAsLong(e);
+		}
+		
+		MappedSpatialHash.write(file, rowBounds, rowRanges, lats, rows.lons, ids);
 	}
 	
+	// iterates over the values of the state at the time iterator() was called
 	class ElemIter implements Iterator<E> {
+		private final State s = state;
+		private int row = 0;
+		private int idx = 0;
+		private int added = -1;
+		
+		ElemIter() {
+			advance();
+		}
 		
-		int idx = 0;
+		// moves to the next value that was not removed
+		private void advance() {
+			while (this.row < s.rows.numRows) {
+				if (this.added < 0) {
+					while (this.idx < s.rows.rowStart[this.row + 1] && s.delta(this.row).isRemoved(this.idx)) {
+						this.idx++;
+					}
+					if (this.idx < s.rows.rowStart[this.row + 1]) {
+						return;
+					}
+					this.added = 0;
+				}
+				if (this.added < s.delta(this.row).numAdded) {
+					return;
+				}
+				this.row++;
+				this.added = -1;
+			}
+		}
 
 		@Override
 		public boolean hasNext() {
-			return idx < size();
+			return this.row < s.rows.numRows;
 		}
 
+		@SuppressWarnings("unchecked")
 		@Override
 		public E next() {
-			E res = get(idx);
-			idx++;
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			E res = (this.added < 0 ? get(s, this.idx++) : (E) s.delta(this.row).added[this.added++]);
+			advance();
 			return res;
 		}
 		
@@ -0,0 +1,199 @@
+package jgeo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import jgeo.BoundingShape.Overlap;
+
+// Search for the objects in an area that match a filter, and the ranked
+// search and counting, over the nodes of a quad tree (see SearchNode); used
+// by QuadTree, VersionedQuadTree, MappedQuadTree and PackedQuadTree.
+class TreeSearch<T extends LocationObject> {
+    public final SearchFilter filter;
+    public final BoundingShape area;
+    public final int maxResults;
+    public final QueryStats stats;
+    public Collection<T> res = new ArrayList<T>();
+
+    TreeSearch(SearchFilter filter, BoundingShape area, int maxResults, QueryStats stats) {
+        this.filter = filter;
+        this.area = area;
+        this.maxResults = maxResults;
+        this.stats = stats;
+    }
+
+    // Adds the objects below node in the search area to the result; if inside
+    // is true, node is known to be entirely in the area, so neither the node
+    // nor its objects need to be checked. Returns false as soon as there are
+    // more than maxResults results.
+    public boolean search(SearchNode<T> node, boolean inside) {
+        this.stats.nodesVisited++;
+        if (!hasCategory(node, this.filter)) {
+            return true;
+        } else if (!inside) {
+            Overlap overlap = node.getOverlap(this.area);
+            if (overlap == Overlap.OUTSIDE) {
+                return true;
+            }
+            inside = (overlap == Overlap.INSIDE);
+        }
+
+        if (node.isLeaf()) {
+            this.stats.leavesScanned++;
+            this.stats.objectsTested += node.size();
+            for (int i = 0; i < node.size(); i++) {
+                if (inside || node.contains(i, this.area)) {
+                    T obj = node.getObject(i);
+                    if (SearchFilter.hasCategory(this.filter, obj)) {
+                        this.stats.filterEvaluations++;
+                        if (this.filter.matches(obj)) {
+                            this.stats.filterMatches++;
+                            this.res.add(obj);
+                        }
+                    }
+                }
+            }
+
+            return this.res.size() <= this.maxResults;
+        }
+
+        for (int i = 0; i < 4; i++) {
+            SearchNode<T> child = node.getChild(i);
+            if (child != null && !search(child, inside)) {
+                return false;
+            }
+        }
+
+        return this.res.size() <= this.maxResults;
+    }
+
+    // true if the subtree of node may have objects that match filter (null for all objects)
+    static boolean hasCategory(SearchNode<?> node, SearchFilter filter) {
+        return filter == null || filter.getCategories() == LocationObject.ALL_CATEGORIES
+                || (node.getCategories() & filter.getCategories()) != 0;
+    }
+
+    // entry of the queue for the ranked search: either a node with the best
+    // rank in its subtree or an object with its rank and key, so that objects
+    // come in the order of their ranks and keys
+    private static class RankCandidate<T extends LocationObject> implements Comparable<RankCandidate<T>> {
+        final long rank;
+        final String key;
+        final SearchNode.Ranked<T> node;
+        final T obj;
+
+        // node is entirely in the search area
+        final boolean inside;
+
+        RankCandidate(long rank, String key, SearchNode.Ranked<T> node, T obj, boolean inside) {
+            this.rank = rank;
+            this.key = key;
+            this.node = node;
+            this.obj = obj;
+            this.inside = inside;
+        }
+
+        @Override
+        public int compareTo(RankCandidate<T> o) {
+            // nodes have no key and come before the objects with their best rank
+            return RankIndex.compare(this.rank, this.key, o.rank, o.key);
+        }
+    }
+
+    // Returns the best ranked maxResults objects below root in the area (null
+    // for everywhere) that match the filter. Nodes are visited in the order of
+    // the best rank in their subtree, so subtrees that cannot contain one of
+    // the best objects are skipped.
+    static <T extends LocationObject> List<T> rankedSearch(SearchNode.Ranked<T> root, SearchFilter filter,
+            BoundingShape area, int maxResults, QueryStats stats) {
+        List<T> res = new ArrayList<T>();
+        PriorityQueue<RankCandidate<T>> queue = new PriorityQueue<RankCandidate<T>>();
+        queue.add(new RankCandidate<T>(root.getBestRank(), null, root, null, area == null));
+
+        while (res.size() < maxResults && !queue.isEmpty()) {
+            RankCandidate<T> c = queue.poll();
+            if (c.obj != null) {
+                // filter as late as possible as it might be expensive
+                stats.filterEvaluations++;
+                if (filter.matches(c.obj)) {
+                    stats.filterMatches++;
+                    res.add(c.obj);
+                }
+            } else if (c.node.isLeaf()) {
+                stats.nodesVisited++;
+                stats.leavesScanned++;
+                stats.objectsTested += c.node.size();
+                for (int i = 0; i < c.node.size(); i++) {
+                    if (c.inside || c.node.contains(i, area)) {
+                        T obj = c.node.getObject(i);
+                        if (SearchFilter.hasCategory(filter, obj)) {
+                            queue.add(new RankCandidate<T>(c.node.getRank(i), c.node.getKey(i), null, obj, true));
+                        }
+                    }
+                }
+            } else {
+                stats.nodesVisited++;
+                for (int i = 0; i < 4; i++) {
+                    SearchNode.Ranked<T> n = c.node.getChild(i);
+                    Overlap overlap = (n == null || !hasCategory(n, filter) ? Overlap.OUTSIDE
+                            : c.inside ? Overlap.INSIDE : n.getOverlap(area));
+                    if (overlap != Overlap.OUTSIDE) {
+                        queue.add(new RankCandidate<T>(n.getBestRank(), null, n, null, overlap == Overlap.INSIDE));
+                    }
+                }
+            }
+        }
+
+        return res;
+    }
+
+    // Counts the objects below node in area (null for everywhere) that match
+    // the filter (null for all objects). The counts of nodes inside the area
+    // are used without visiting their objects if the filter matches all
+    // objects anyway.
+    static <T extends LocationObject> int count(SearchNode<T> node, SearchFilter filter, BoundingShape area) {
+        return count(node, filter, area, area == null);
+    }
+
+    private static <T extends LocationObject> int count(SearchNode<T> node, SearchFilter filter,
+            BoundingShape area, boolean inside) {
+        if (node.getCount() == 0 || !hasCategory(node, filter)) {
+            return 0;
+        } else if (!inside) {
+            Overlap overlap = node.getOverlap(area);
+            if (overlap == Overlap.OUTSIDE) {
+                return 0;
+            }
+            inside = (overlap == Overlap.INSIDE);
+        }
+
+        boolean matchesAll = SearchFilter.matchesAll(filter);
+        if (matchesAll && inside) {
+            return node.getCount();
+        }
+
+        int res = 0;
+        if (node.isLeaf()) {
+            for (int i = 0; i < node.size(); i++) {
+                if (inside || node.contains(i, area)) {
+                    if (matchesAll) {
+                        res++;
+                    } else {
+                        T obj = node.getObject(i);
+                        if (SearchFilter.hasCategory(filter, obj) && filter.matches(obj)) {
+                            res++;
+                        }
+                    }
+                }
+            }
+        } else {
+            for (int i = 0; i < 4; i++) {
+                SearchNode<T> child = node.getChild(i);
+                res += (child != null ? count(child, filter, area, inside) : 0);
+            }
+        }
+        return res;
+    }
+}
@@ -0,0 +1,396 @@
+package jgeo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import jgeo.BoundingShape.Overlap;
+
+// QuadTree with copy-on-write versions for concurrent readers.
+//
+// Readers take a Snapshot and search an immutable version of the tree
+// without any locking. Writers collect puts and removes in a Batch; commit()
+// applies them by copying the nodes on the modified paths (nodes created by
+// the same commit are modified in place) and publishes the new root at once,
+// so readers see either none or all changes of a batch. Nodes of old versions
+// are shared with the new version where unchanged and are garbage collected
+// as soon as no snapshot refers to them any more.
+public class VersionedQuadTree<T extends LocationObject> {
+    private static final Object[] EMPTY = new Object[0];
+    private static final long[] NO_RANKS = new long[0];
+
+    static final class Node implements SearchNode.Ranked<LocationObject> {
+        final double x0, y0, x1, y1;
+        final int level;
+
+        // commit that created this node; only this commit may modify it
+        final long version;
+
+        // objects of a leaf and their ranks
+        Object[] objects = EMPTY;
+        long[] ranks = NO_RANKS;
+        int size = 0;
+
+        // lowerLeft, lowerRight, upperLeft, upperRight or null for a leaf
+        Node[] children = null;
+
+        // number of objects, best (smallest) rank and union of the categories
+        // of the objects in this subtree
+        int count = 0;
+        long bestRank = Long.MAX_VALUE;
+        long categories = 0;
+
+        Node(double x0, double y0, double x1, double y1, int level, long version) {
+            this.x0 = x0;
+            this.y0 = y0;
+            this.x1 = x1;
+            this.y1 = y1;
+            this.level = level;
+            this.version = version;
+        }
+
+        // copy of this node for the given version
+        Node copy(long version) {
+            Node n = new Node(this.x0, this.y0, this.x1, this.y1, this.level, version);
+            n.objects = this.objects.clone();
+            n.ranks = this.ranks.clone();
+            n.size = this.size;
+            n.children = (this.children == null ? null : this.children.clone());
+            n.count = this.count;
+            n.bestRank = this.bestRank;
+            n.categories = this.categories;
+            return n;
+        }
+
+        @Override
+        public boolean isLeaf() {
+            return this.children == null;
+        }
+
+        @Override
+        public Node getChild(int i) {
+            return this.children[i];
+        }
+
+        @Override
+        public int getCount() {
+            return this.count;
+        }
+
+        @Override
+        public long getCategories() {
+            return this.categories;
+        }
+
+        @Override
+        public long getBestRank() {
+            return this.bestRank;
+        }
+
+        @Override
+        public int size() {
+            return this.size;
+        }
+
+        @Override
+        public LocationObject getObject(int i) {
+            return (LocationObject) this.objects[i];
+        }
+
+        @Override
+        public long getRank(int i) {
+            return this.ranks[i];
+        }
+
+        @Override
+        public String getKey(int i) {
+            return null;
+        }
+
+        @Override
+        public boolean contains(int i, BoundingShape area) {
+            return area.contains(getObject(i).getLatLon());
+        }
+
+        int getChildIndex(double x, double y) {
+            final boolean right = (x >= (this.x0 + this.x1) / 2);
+            final boolean top = (y >= (this.y0 + this.y1) / 2);
+            return (top ? 2 : 0) + (right ? 1 : 0);
+        }
+
+        Node createChild(int idx, long version) {
+            double xMid = (this.x0 + this.x1) / 2;
+            double yMid = (this.y0 + this.y1) / 2;
+            boolean right = (idx & 1) != 0;
+            boolean top = (idx & 2) != 0;
+            return new Node(right ? xMid : this.x0, top ? yMid : this.y0,
+                    right ? this.x1 : xMid, top ? this.y1 : yMid, this.level + 1, version);
+        }
+
+        // updates best rank and categories after an object was removed from this subtree
+        void updateAggregates() {
+            long best = Long.MAX_VALUE;
+            long categories = 0;
+            if (isLeaf()) {
+                for (int i = 0; i < this.size; i++) {
+                    best = Math.min(best, this.ranks[i]);
+                    categories |= getObject(i).getCategories();
+                }
+            } else {
+                for (Node c : this.children) {
+                    if (c != null) {
+                        best = Math.min(best, c.bestRank);
+                        categories |= c.categories;
+                    }
+                }
+            }
+            this.bestRank = best;
+            this.categories = categories;
+        }
+
+        @Override
+        public Overlap getOverlap(BoundingShape area) {
+            return area.getOverlap(this.y0, this.x0, this.y1, this.x1);
+        }
+    }
+
+    // Immutable version of the tree.
+    public class Snapshot {
+        private final Node root;
+        private final long version;
+
+        Snapshot(Node root, long version) {
+            this.root = root;
+            this.version = version;
+        }
+
+        // number of commits before this version
+        public long getVersion() {
+            return this.version;
+        }
+
+        public int size() {
+            return this.root.count;
+        }
+
+        // the nodes hold the objects of the tree, which are all Ts
+        @SuppressWarnings("unchecked")
+        private SearchNode.Ranked<T> root() {
+            return (SearchNode.Ranked<T>) (SearchNode.Ranked<?>) this.root;
+        }
+
+        public SearchResult<T> getInArea(SearchFilter filter, BoundingShape area) {
+            int maxResults = QuadTree.getMaxResults(size(), filter.getMaxResults());
+
+            SearchResult<T> res = null;
+            if (area != null) {
+                TreeSearch<T> search = new TreeSearch<T>(filter, area, maxResults, new QueryStats());
+                LatLon lowerLeft = area.getLowerLeft();
+                LatLon upperRight = area.getUpperRight();
+                if (lowerLeft.lon != upperRight.lon && lowerLeft.lat != upperRight.lat) {
+                    search.search(root(), false);
+                }
+                res = new SearchResult<T>(search.res, search.res.size());
+            }
+
+            // too many results, do a ranked search to get an ordered list of results
+            if (res == null || res.data.size() > maxResults) {
+                res = rankedSearch(filter, area);
+            }
+
+            return res;
+        }
+
+        // Returns the best ranked objects in the area (null for everywhere)
+        // that match the filter, see QuadTree.rankedSearch.
+        public SearchResult<T> rankedSearch(SearchFilter filter, BoundingShape area) {
+            int maxResults = filter.getMaxResults();
+            QueryStats stats = new QueryStats();
+            List<T> res = TreeSearch.rankedSearch(root(), filter, area, maxResults, stats);
+
+            // Exact if the filter matches all objects or all matches were
+            // found; otherwise the share of matches among the tested objects
+            // is extrapolated to the objects in the area, as counting would
+            // call the filter for every one of them.
+            int totalHits;
+            if (SearchFilter.matchesAll(filter)) {
+                totalHits = count(filter, area);
+            } else if (res.size() < maxResults) {
+                totalHits = res.size();
+            } else {
+                totalHits = (int) (res.size() / (double) stats.filterEvaluations * count(area));
+            }
+            return new SearchResult<T>(res, totalHits);
+        }
+
+        // exact number of objects in area (null for everywhere)
+        public int count(BoundingShape area) {
+            return count(null, area);
+        }
+
+        // exact number of objects in area (null for everywhere) that match the
+        // filter (null for all objects); the counts of the nodes are only used
+        // if the filter matches all objects
+        public int count(SearchFilter filter, BoundingShape area) {
+            return TreeSearch.count(root(), filter, area);
+        }
+    }
+
+    // Changes that are applied together by commit().
+    public class Batch {
+        private final List<T> objects = new ArrayList<T>();
+
+        // rank of an object to put or null to remove the object
+        private final List<Long> ranks = new ArrayList<Long>();
+
+        public Batch put(T obj, long rank) {
+            this.objects.add(obj);
+            this.ranks.add(rank);
+            return this;
+        }
+
+        // obj has to be at the position it was put
+        public Batch remove(T obj) {
+            this.objects.add(obj);
+            this.ranks.add(null);
+            return this;
+        }
+
+        // applies the changes in order and publishes them as a new version
+        public Snapshot commit() {
+            synchronized (VersionedQuadTree.this) {
+                Snapshot base = current;
+                long version = base.version + 1;
+                Node root = base.root;
+                for (int i = 0; i < this.objects.size(); i++) {
+                    T obj = this.objects.get(i);
+                    LatLon pos = obj.getLatLon();
+                    Long rank = this.ranks.get(i);
+                    if (rank != null) {
+                        root = insert(root, obj, rank, pos.lon, pos.lat, version);
+                    } else if (contains(root, obj, pos.lon, pos.lat)) {
+                        root = removeFrom(root, obj, pos.lon, pos.lat, version);
+                    }
+                }
+
+                current = new Snapshot(root, version);
+                return current;
+            }
+        }
+    }
+
+    private final int maxLevel;
+    private final int bucketCapacity;
+
+    // latest version; replaced as a whole by commit()
+    private volatile Snapshot current;
+
+    // see QuadTree(maxLevel, bucketCapacity)
+    public VersionedQuadTree(int maxLevel, int bucketCapacity) {
+        this.maxLevel = maxLevel;
+        this.bucketCapacity = bucketCapacity;
+        this.current = new Snapshot(new Node(-180, -90, +180, +90, 0, 0), 0);
+    }
+
+    // latest committed version
+    public Snapshot snapshot() {
+        return this.current;
+    }
+
+    public Batch batch() {
+        return new Batch();
+    }
+
+    public Snapshot put(T obj, long rank) {
+        return batch().put(obj, rank).commit();
+    }
+
+    public Snapshot remove(T obj) {
+        return batch().remove(obj).commit();
+    }
+
+    private Node insert(Node node, Object obj, long rank, double x, double y, long version) {
+        Node n = (node.version == version ? node : node.copy(version));
+        n.count++;
+        n.bestRank = Math.min(n.bestRank, rank);
+        n.categories |= ((LocationObject) obj).getCategories();
+
+        if (!n.isLeaf()) {
+            int idx = n.getChildIndex(x, y);
+            Node child = n.children[idx];
+            n.children[idx] = insert(child != null ? child : n.createChild(idx, version), obj, rank, x, y, version);
+            return n;
+        }
+
+        if (n.size == n.objects.length) {
+            int capacity = Math.max(4, n.size * 2);
+            n.objects = Arrays.copyOf(n.objects, capacity);
+            n.ranks = Arrays.copyOf(n.ranks, capacity);
+        }
+        n.objects[n.size] = obj;
+        n.ranks[n.size] = rank;
+        n.size++;
+
+        if (n.size > this.bucketCapacity && n.level < this.maxLevel) {
+            // split, the new children belong to this version
+            Object[] objects = n.objects;
+            long[] ranks = n.ranks;
+            int size = n.size;
+            n.objects = EMPTY;
+            n.ranks = NO_RANKS;
+            n.size = 0;
+            n.count = 0;
+            n.bestRank = Long.MAX_VALUE;
+            n.categories = 0;
+            n.children = new Node[4];
+            for (int i = 0; i < size; i++) {
+                LatLon pos = ((LocationObject) objects[i]).getLatLon();
+                insert(n, objects[i], ranks[i], pos.lon, pos.lat, version);
+            }
+        }
+        return n;
+    }
+
+    private static boolean contains(Node node, Object obj, double x, double y) {
+        while (node != null && !node.isLeaf()) {
+            node = node.children[node.getChildIndex(x, y)];
+        }
+        if (node != null) {
+            for (int i = 0; i < node.size; i++) {
+                if (node.objects[i] == obj) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // removes obj which has to be in the subtree of node; returns the new
+    // node or null if the subtree gets empty (the root is kept as a leaf)
+    private Node removeFrom(Node node, Object obj, double x, double y, long version) {
+        Node n = (node.version == version ? node : node.copy(version));
+        n.count--;
+
+        if (n.isLeaf()) {
+            for (int i = 0; i < n.size; i++) {
+                if (n.objects[i] == obj) {
+                    // order within a leaf does not matter
+                    n.size--;
+                    n.objects[i] = n.objects[n.size];
+                    n.ranks[i] = n.ranks[n.size];
+                    n.objects[n.size] = null;
+                    break;
+                }
+            }
+        } else {
+            int idx = n.getChildIndex(x, y);
+            n.children[idx] = removeFrom(n.children[idx], obj, x, y, version);
+            if (n.count == 0) {
+                n.children = null;
+            }
+        }
+
+        n.updateAggregates();
+        return (n.count == 0 && n.level > 0 ? null : n);
+    }
+}
@@ -0,0 +1,213 @@
+package jgeo;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class ConcurrentQuadTreeTest extends TestBase {
+    static class TestObject implements LocationObject {
+        private final LatLon latLon;
+
+        TestObject(double lat, double lon) {
+            this.latLon = new LatLon(lat, lon);
+        }
+
+        @Override
+        public LatLon getLatLon() {
+            return latLon;
+        }
+    }
+
+    static class AllFilter implements SearchFilter {
+        private final int maxResults;
+
+        AllFilter(int maxResults) {
+            this.maxResults = maxResults;
+        }
+
+        @Override
+        public boolean matches(LocationObject location) {
+            return true;
+        }
+
+        @Override
+        public int getMaxResults() {
+            return maxResults;
+        }
+    }
+
+    private static final int MAX_LEVEL = 10;
+    private static final int STRIPE_LEVEL = 4;
+
+    // clustered data around a city, some noise all over the world and
+    // points on the borders of the subtrees at the stripe level
+    private static List<TestObject> createData(int n, long seed) {
+        Random rnd = new Random(seed);
+        List<TestObject> res = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            if (i % 4 == 0) {
+                res.add(new TestObject(rnd.nextDouble() * 170 - 85, rnd.nextDouble() * 360 - 180));
+            } else {
+                res.add(new TestObject(48 + rnd.nextGaussian() * 0.5, 11 + rnd.nextGaussian() * 0.5));
+            }
+        }
+
+        int cells = 1 << STRIPE_LEVEL;
+        for (int i = 0; i <= cells; i++) {
+            for (int j = 0; j <= cells; j++) {
+                res.add(new TestObject(-90 + i * 180.0 / cells, -180 + j * 360.0 / cells));
+            }
+        }
+        return res;
+    }
+
+    private static Set<TestObject> inArea(List<TestObject> data, BoundingShape area) {
+        Set<TestObject> res = new HashSet<>();
+        for (TestObject o : data) {
+            if (area.contains(o.getLatLon())) {
+                res.add(o);
+            }
+        }
+        return res;
+    }
+
+    @Test
+    public void testConcurrentPutAndGetInArea() throws Exception {
+        List<TestObject> data = createData(40000, 1);
+        ConcurrentQuadTree<TestObject> tree = new ConcurrentQuadTree<>(MAX_LEVEL, 0, STRIPE_LEVEL, 8);
+        ConcurrentQuadTree<TestObject> sequential = new ConcurrentQuadTree<>(MAX_LEVEL, 0, STRIPE_LEVEL, 8);
+        for (int i = 0; i < data.size(); i++) {
+            sequential.put(data.get(i), i);
+        }
+
+        BoundingBox area = new BoundingBox(new LatLon(40, 0), new LatLon(55, 20));
+        Set<TestObject> all = new HashSet<>(data);
+        AllFilter filter = new AllFilter(data.size());
+
+        int numWriters = 4;
+        ExecutorService pool = Executors.newFixedThreadPool(numWriters + 1);
+        try {
+            List<Future<?>> writers = new ArrayList<>();
+            for (int t = 0; t < numWriters; t++) {
+                final int first = t;
+                writers.add(pool.submit(() -> {
+                    for (int i = first; i < data.size(); i += numWriters) {
+                        tree.put(data.get(i), i);
+                    }
+                }));
+            }
+
+            // readers see every object at most once and never lose one that was found before
+            Future<Integer> reader = pool.submit(() -> {
+                int reads = 0;
+                int lastSize = 0;
+                while (reads == 0 || tree.getNumObjects() < data.size()) {
+                    List<TestObject> res = new ArrayList<>(tree.getInArea(filter, area).data);
+                    Set<TestObject> unique = new HashSet<>(res);
+                    assertEquals(res.size(), unique.size());
+                    assertTrue(all.containsAll(unique));
+                    assertTrue(res.size() >= lastSize);
+                    lastSize = res.size();
+                    reads++;
+                }
+                return reads;
+            });
+
+            for (Future<?> writer : writers) {
+                writer.get();
+            }
+            assertTrue(reader.get() > 0);
+        } finally {
+            pool.shutdown();
+        }
+
+        assertEquals(data.size(), tree.getNumObjects());
+        assertEquals(all, new HashSet<>(tree.getAll()));
+        assertEquals(sequential.getNumNodes(), tree.getNumNodes());
+
+        double w = 360.0 / (1 << STRIPE_LEVEL);
+        double h = 180.0 / (1 << STRIPE_LEVEL);
+        List<BoundingBox> areas = new ArrayList<>();
+        areas.add(area);
+        areas.add(new BoundingBox(new LatLon(48.1, 11.1), new LatLon(48.2, 11.2)));
+        areas.add(new BoundingBox(new LatLon(-60, 170), new LatLon(60, -170)));
+        areas.add(new BoundingBox(new LatLon(-90 + 4 * h, -180 + 8 * w), new LatLon(-90 + 6 * h, -180 + 10 * w)));
+        for (BoundingBox a : areas) {
+            List<TestObject> res = new ArrayList<>(tree.getInArea(filter, a).data);
+            assertEquals(res.size(), new HashSet<>(res).size());
+            assertEquals(inArea(data, a), new HashSet<>(res));
+            assertEquals(res.size(), tree.count(a));
+            assertEquals(new HashSet<>(sequential.getInArea(filter, a).data), new HashSet<>(res));
+        }
+    }
+
+    @Test
+    public void testLinearSearchInRankOrder() {
+        List<TestObject> data = createData(20000, 2);
+        ConcurrentQuadTree<TestObject> tree = new ConcurrentQuadTree<>(MAX_LEVEL, 0, STRIPE_LEVEL, 8);
+        for (int i = data.size() - 1; i >= 0; i--) {
+            tree.put(data.get(i), i);
+        }
+
+        assertEquals(data.subList(0, 10), new ArrayList<>(tree.getInArea(new AllFilter(10), null).data));
+
+        BoundingBox area = new BoundingBox(new LatLon(40, 0), new LatLon(55, 20));
+        List<TestObject> expected = new ArrayList<>();
+        for (TestObject o : data) {
+            if (expected.size() < 10 && area.contains(o.getLatLon())) {
+                expected.add(o);
+            }
+        }
+        assertEquals(expected, new ArrayList<>(tree.getInArea(new AllFilter(10), area).data));
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testSameResultsAsQuadTree() {
+        List<TestObject> data = createData(20000, 3);
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < data.size(); i++) {
+            order.add(i);
+        }
+        Collections.shuffle(order, new Random(4));
+
+        ConcurrentQuadTree<TestObject> tree = new ConcurrentQuadTree<>(MAX_LEVEL, 8, STRIPE_LEVEL, 8);
+        QuadTree<TestObject> expected = new QuadTree<>(MAX_LEVEL, 8);
+        for (int i = 0; i < data.size(); i++) {
+            // distinct text ranks with the same first four characters, and some numbers
+            int r = order.get(i);
+            String rank = (r % 5 == 0 ? Integer.toString(r) : "rank" + r);
+            tree.put(data.get(i), rank, null);
+            expected.put(data.get(i), rank, null);
+        }
+
+        assertEquals(data.size(), tree.getNumObjects());
+        assertEquals(new ArrayList<>(expected.getAll()), new ArrayList<>(tree.getAll()));
+
+        List<BoundingShape> areas = new ArrayList<>();
+        areas.add(new BoundingBox(new LatLon(40, 0), new LatLon(55, 20)));
+        areas.add(new BoundingBox(new LatLon(-60, 170), new LatLon(60, -170)));
+        areas.add(new BoundingCircle(new LatLon(48, 11), 50000));
+        areas.add(null);
+        for (BoundingShape area : areas) {
+            for (int maxResults : new int[] { 10, data.size() }) {
+                AllFilter filter = new AllFilter(maxResults);
+                assertEquals(expected.count(area), tree.count(area));
+                assertEquals(expected.rankedSearch(filter, area).data, tree.rankedSearch(filter, area).data);
+                assertEquals(expected.linearSearch(filter, area).data, tree.linearSearch(filter, area).data);
+                assertEquals(new HashSet<>(expected.getInArea(filter, area).data),
+                        new HashSet<>(tree.getInArea(filter, area).data));
+            }
+        }
+    }
+}
@@ -0,0 +1,1156 @@
+package jgeo;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import jgeo.BoundingShape.Overlap;
+
+public class QuadTreeTest extends TestBase {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    static class TestObject implements LocationObject {
+        private LatLon latLon;
+
+        TestObject(double lat, double lon) {
+            this.latLon = new LatLon(lat, lon);
+        }
+
+        void moveTo(LatLon latLon) {
+            this.latLon = latLon;
+        }
+
+        @Override
+        public LatLon getLatLon() {
+            return latLon;
+        }
+    }
+
+    static class AllFilter implements SearchFilter {
+        private final int maxResults;
+
+        AllFilter(int maxResults) {
+            this.maxResults = maxResults;
+        }
+
+        @Override
+        public boolean matches(LocationObject location) {
+            return true;
+        }
+
+        @Override
+        public int getMaxResults() {
+            return maxResults;
+        }
+
+        @Override
+        public boolean matchesAll() {
+            return true;
+        }
+    }
+
+    // clustered data around a city plus some noise all over the world
+    private static List<TestObject> createData(int n, long seed) {
+        Random rnd = new Random(seed);
+        List<TestObject> res = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            if (i % 4 == 0) {
+                res.add(new TestObject(rnd.nextDouble() * 170 - 85, rnd.nextDouble() * 360 - 180));
+            } else {
+                res.add(new TestObject(48 + rnd.nextGaussian() * 0.5, 11 + rnd.nextGaussian() * 0.5));
+            }
+        }
+        return res;
+    }
+
+    private static QuadTree<TestObject> createTree(List<TestObject> data, int maxLevel, int bucketCapacity) {
+        QuadTree<TestObject> tree = new QuadTree<>(maxLevel, bucketCapacity);
+        for (int i = 0; i < data.size(); i++) {
+            tree.put(data.get(i), i);
+        }
+        return tree;
+    }
+
+    private static Set<TestObject> inArea(List<TestObject> data, BoundingShape area) {
+        Set<TestObject> res = new HashSet<>();
+        for (TestObject o : data) {
+            if (area.contains(o.getLatLon())) {
+                res.add(o);
+            }
+        }
+        return res;
+    }
+
+    @Test
+    public void testGetInAreaWithBucketCapacity() {
+        List<TestObject> data = createData(20000, 1);
+        QuadTree<TestObject> tree = createTree(data, 20, 32);
+
+        Random rnd = new Random(2);
+        for (int i = 0; i < 100; i++) {
+            double lat = 48 + rnd.nextGaussian();
+            double lon = 11 + rnd.nextGaussian();
+            double size = rnd.nextDouble() * 0.2;
+            BoundingBox area = new BoundingBox(new LatLon(lat, lon), new LatLon(lat + size, lon + size));
+
+            SearchResult<TestObject> res = tree.getInArea(new AllFilter(data.size()), area);
+            assertEquals(inArea(data, area), new HashSet<>(res.data));
+        }
+    }
+
+    @Test
+    public void testPackedQuadTree() {
+        int maxLevel = 8;
+        double w = 360.0 / (1 << maxLevel);
+        double h = 180.0 / (1 << maxLevel);
+
+        // points on the borders of the Morton cells and the poles and +/-180 deg.
+        List<TestObject> data = createData(20000, 15);
+        for (int i = 0; i <= 40; i++) {
+            for (int j = 0; j <= 40; j++) {
+                data.add(new TestObject(-90 + (108 + i) * h, -180 + (128 + j) * w));
+            }
+        }
+        data.add(new TestObject(90, 180));
+        data.add(new TestObject(-90, -180));
+        data.add(new TestObject(0, 180));
+        data.add(new TestObject(0, -180));
+
+        QuadTree<TestObject> tree = createTree(data, maxLevel, 16);
+        PackedQuadTree<TestObject> packed = new PackedQuadTree<>(data, maxLevel);
+        assertEquals(data.size(), packed.size());
+        assertEquals(data, packed.getAll());
+
+        List<BoundingBox> areas = new ArrayList<>();
+        areas.add(new BoundingBox(new LatLon(40, 0), new LatLon(55, 20)));
+        areas.add(new BoundingBox(new LatLon(48.1, 11.1), new LatLon(48.2, 11.2)));
+        areas.add(new BoundingBox(new LatLon(-60, 170), new LatLon(60, -170)));
+        areas.add(new BoundingBox(new LatLon(-90, -180), new LatLon(90, 180)));
+        // areas on cell borders, both at the leaf level and above
+        areas.add(new BoundingBox(new LatLon(-90 + 110 * h, -180 + 130 * w),
+                new LatLon(-90 + 120 * h, -180 + 150 * w)));
+        areas.add(new BoundingBox(new LatLon(-90 + 112 * h, -180 + 128 * w),
+                new LatLon(-90 + 144 * h, -180 + 160 * w)));
+        areas.add(new BoundingBox(new LatLon(-90 + 115 * h, -180 + 131 * w),
+                new LatLon(-90 + 116 * h, -180 + 132 * w)));
+        areas.add(new BoundingBox(new LatLon(0, 0), new LatLon(90, 180)));
+        areas.add(new BoundingBox(new LatLon(-90, 0), new LatLon(0, 180)));
+
+        AllFilter all = new AllFilter(data.size());
+        for (BoundingBox area : areas) {
+            Set<TestObject> expected = inArea(data, area);
+            SearchResult<TestObject> res = packed.getInArea(all, area);
+            assertEquals(expected, new HashSet<>(res.data));
+            assertEquals(expected.size(), res.data.size());
+            assertEquals(tree.count(area), res.totalHits);
+            assertEquals(new HashSet<>(tree.getInArea(all, area).data), new HashSet<>(res.data));
+            assertEquals(new HashSet<>(tree.getInArea(new AllFilter(10), area).data),
+                    new HashSet<>(packed.getInArea(new AllFilter(10), area).data));
+        }
+
+        // too many results for the tree search, both return the best objects in rank order
+        BoundingBox world = areas.get(3);
+        assertEquals(tree.getInArea(new AllFilter(10), world).data, packed.getInArea(new AllFilter(10), world).data);
+        assertEquals(tree.getInArea(new AllFilter(10), null).data, packed.getInArea(new AllFilter(10), null).data);
+    }
+
+    @Test
+    public void testBucketCapacityCreatesFewerNodes() {
+        List<TestObject> data = createData(20000, 1);
+        QuadTree<TestObject> fixed = createTree(data, 16, 0);
+        QuadTree<TestObject> adaptive = createTree(data, 16, 32);
+
+        assertTrue(adaptive.getNumNodes() * 5 < fixed.getNumNodes());
+    }
+
+    private void testRemoveAndMove(int bucketCapacity) {
+        List<TestObject> data = createData(5000, 3);
+        QuadTree<TestObject> tree = createTree(data, 16, bucketCapacity);
+
+        // move every second object a bit, remove every third
+        Random rnd = new Random(4);
+        List<TestObject> remaining = new ArrayList<>();
+        for (int i = 0; i < data.size(); i++) {
+            TestObject o = data.get(i);
+            if (i % 3 == 0) {
+                assertTrue(tree.remove(o));
+                assertFalse(tree.remove(o));
+                continue;
+            } else if (i % 2 == 0) {
+                LatLon oldPos = o.getLatLon();
+                o.moveTo(new LatLon(oldPos.lat + rnd.nextGaussian() * 0.01, oldPos.lon + rnd.nextGaussian() * 0.01));
+                assertTrue(tree.move(o, oldPos));
+            }
+            remaining.add(o);
+        }
+
+        assertEquals(remaining.size(), tree.getNumObjects());
+        assertEquals(remaining.size(), tree.getAll().size());
+
+        // same result as a tree built from the remaining objects
+        QuadTree<TestObject> expected = createTree(remaining, 16, bucketCapacity);
+        BoundingBox area = new BoundingBox(new LatLon(47.5, 10.5), new LatLon(48.5, 11.5));
+        AllFilter filter = new AllFilter(data.size());
+        assertEquals(new HashSet<>(expected.getInArea(filter, area).data),
+                new HashSet<>(tree.getInArea(filter, area).data));
+
+        // empty subtrees are removed
+        for (TestObject o : remaining) {
+            assertTrue(tree.remove(o));
+        }
+        assertEquals(0, tree.getNumObjects());
+        assertEquals(1, tree.getNumNodes());
+    }
+
+    @Test
+    public void testRemoveAndMove() {
+        testRemoveAndMove(0);
+    }
+
+    @Test
+    public void testRemoveAndMoveWithBucketCapacity() {
+        testRemoveAndMove(16);
+    }
+
+    @Test
+    public void testNearest() {
+        final List<TestObject> data = createData(5000, 5);
+        QuadTree<TestObject> tree = createTree(data, 16, 8);
+
+        Random rnd = new Random(6);
+        for (int i = 0; i < 50; i++) {
+            final LatLon at = i % 2 == 0
+                    ? new LatLon(48 + rnd.nextGaussian(), 11 + rnd.nextGaussian())
+                    : new LatLon(rnd.nextDouble() * 180 - 90, rnd.nextDouble() * 360 - 180);
+            int k = 1 + rnd.nextInt(20);
+
+            List<TestObject> expected = new ArrayList<>(data);
+            expected.sort((o1, o2) -> Double.compare(o1.getLatLon().getDistanceInMeters(at),
+                    o2.getLatLon().getDistanceInMeters(at)));
+            expected = expected.subList(0, k);
+
+            assertEquals(expected, tree.nearest(at, k, null));
+        }
+
+        assertEquals(data.size(), tree.nearest(new LatLon(0, 0), data.size() + 1, null).size());
+    }
+
+    @Test
+    public void testRankedSearch() {
+        List<TestObject> data = createData(20000, 7);
+        Collections.shuffle(data, new Random(8));
+        QuadTree<TestObject> tree = createTree(data, 16, 16);
+
+        // remove some of the best ranked objects
+        List<TestObject> remaining = new ArrayList<>(data);
+        for (int i = 0; i < 100; i += 3) {
+            assertTrue(tree.remove(data.get(i)));
+            remaining.remove(data.get(i));
+        }
+
+        // getAll returns the objects by rank
+        assertEquals(remaining, new ArrayList<>(tree.getAll()));
+
+        SearchFilter evenLat = new AllFilter(20) {
+            @Override
+            public boolean matches(LocationObject location) {
+                return ((int) (location.getLatLon().lat * 1000)) % 2 == 0;
+            }
+
+            @Override
+            public boolean matchesAll() {
+                return false;
+            }
+        };
+
+        BoundingBox area = new BoundingBox(new LatLon(47.5, 10.5), new LatLon(48.5, 11.5));
+        List<TestObject> expected = new ArrayList<>();
+        for (TestObject o : remaining) {
+            if (expected.size() < 20 && area.contains(o.getLatLon()) && evenLat.matches(o)) {
+                expected.add(o);
+            }
+        }
+
+        assertEquals(expected, tree.rankedSearch(evenLat, area).data);
+
+        // too many results for the tree search
+        assertEquals(expected, tree.getInArea(evenLat, area).data);
+
+        // the total hits are estimated, the filter is not called for every object in the area
+        int[] calls = new int[1];
+        SearchFilter counting = new AllFilter(20) {
+            @Override
+            public boolean matches(LocationObject location) {
+                calls[0]++;
+                return evenLat.matches(location);
+            }
+
+            @Override
+            public boolean matchesAll() {
+                return false;
+            }
+        };
+        assertEquals(expected, tree.rankedSearch(counting, area).data);
+        assertTrue(calls[0] < inArea(remaining, area).size() / 10);
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testTextRanks() {
+        Random rnd = new Random(11);
+        QuadTree<TestObject> tree = new QuadTree<>(16, 16);
+        List<String> ranks = new ArrayList<>();
+        Map<String, List<TestObject>> byRank = new HashMap<>();
+        for (int i = 0; i < 3000; i++) {
+            // many text ranks with the same first four characters, and some numbers
+            String rank = (i % 5 == 0 ? Integer.toString(rnd.nextInt(100))
+                    : "rank" + (char) ('a' + rnd.nextInt(26)) + rnd.nextInt(100));
+            TestObject o = new TestObject(48 + rnd.nextGaussian(), 11 + rnd.nextGaussian());
+            tree.put(o, rank, Integer.toString(i));
+            ranks.add(rank);
+            byRank.computeIfAbsent(rank, r -> new ArrayList<>()).add(o);
+        }
+
+        // numbers by value after the texts, which are ordered by their full text;
+        // objects with the same rank in insertion order
+        List<String> texts = ranks.stream().filter(r -> !Character.isDigit(r.charAt(0))).distinct().sorted()
+                .collect(Collectors.toList());
+        List<String> numbers = ranks.stream().filter(r -> Character.isDigit(r.charAt(0))).distinct()
+                .sorted((a, b) -> Integer.compare(Integer.parseInt(a), Integer.parseInt(b)))
+                .collect(Collectors.toList());
+        List<TestObject> expected = new ArrayList<>();
+        for (String rank : texts) {
+            expected.addAll(byRank.get(rank));
+        }
+        for (String rank : numbers) {
+            expected.addAll(byRank.get(rank));
+        }
+        assertEquals(expected, new ArrayList<>(tree.getAll()));
+
+        // removing keeps the order
+        for (int i = 0; i < expected.size(); i += 3) {
+            assertTrue(tree.remove(expected.get(i)));
+        }
+        List<TestObject> remaining = new ArrayList<>();
+        for (int i = 0; i < expected.size(); i++) {
+            if (i % 3 != 0) {
+                remaining.add(expected.get(i));
+            }
+        }
+        assertEquals(remaining, new ArrayList<>(tree.getAll()));
+        assertEquals(remaining.subList(0, 10), tree.linearSearch(new AllFilter(10), null).data);
+
+        // getAll can't be used to modify the tree
+        try {
+            tree.getAll().clear();
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testTextRanksRankedSearch() {
+        Random rnd = new Random(12);
+        QuadTree<TestObject> tree = new QuadTree<>(16, 4);
+        List<TestObject> data = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            // all ranks have the same first four characters
+            TestObject o = new TestObject(48 + rnd.nextGaussian(), 11 + rnd.nextGaussian());
+            tree.put(o, "rank" + rnd.nextInt(1000000), Integer.toString(i));
+            data.add(o);
+        }
+        for (int i = 0; i < data.size(); i += 7) {
+            assertTrue(tree.remove(data.get(i)));
+        }
+
+        // the ranked search of the tree and the scan in rank order return the same objects
+        for (int i = 0; i < 50; i++) {
+            LatLon center = new LatLon(48 + rnd.nextGaussian(), 11 + rnd.nextGaussian());
+            BoundingShape area = BoundingBox.aroundPoint(center, 20000 + rnd.nextDouble() * 100000);
+            AllFilter filter = new AllFilter(1 + rnd.nextInt(20));
+            assertEquals(tree.linearSearch(filter, area).data, tree.rankedSearch(filter, area).data);
+        }
+    }
+
+    @Test
+    public void testCount() {
+        List<TestObject> data = createData(20000, 9);
+        QuadTree<TestObject> tree = createTree(data, 16, 16);
+        for (int i = 0; i < data.size(); i += 5) {
+            tree.remove(data.get(i));
+        }
+        List<TestObject> remaining = new ArrayList<>(tree.getAll());
+
+        Random rnd = new Random(10);
+        for (int i = 0; i < 50; i++) {
+            LatLon center = new LatLon(48 + rnd.nextGaussian(), 11 + rnd.nextGaussian());
+            BoundingShape box = BoundingBox.aroundPoint(center, rnd.nextDouble() * 50000);
+            BoundingShape circle = new BoundingCircle(center, rnd.nextDouble() * 50000);
+
+            assertEquals(inArea(remaining, box).size(), tree.count(box));
+            assertEquals(inArea(remaining, circle).size(), tree.count(circle));
+        }
+        assertEquals(remaining.size(), tree.count(null));
+
+        // exact total hits if there are too many results for the tree search
+        BoundingShape area = BoundingBox.aroundPoint(new LatLon(48, 11), 100000);
+        SearchResult<TestObject> res = tree.getInArea(new AllFilter(10), area);
+        assertEquals(10, res.data.size());
+        assertEquals(inArea(remaining, area).size(), res.totalHits);
+    }
+
+    @Test
+    public void testAggregate() {
+        List<TestObject> data = createData(20000, 31);
+        QuadTree<TestObject> tree = createTree(data, 16, 16);
+        for (int i = 0; i < data.size(); i += 5) {
+            tree.remove(data.get(i));
+        }
+        List<TestObject> remaining = new ArrayList<>(tree.getAll());
+
+        BoundingBox viewport = new BoundingBox(new LatLon(40, 0), new LatLon(55, 20));
+        List<Cluster<TestObject>> clusters = tree.aggregate(viewport, 8);
+        assertFalse(clusters.isEmpty());
+
+        int total = 0;
+        for (Cluster<TestObject> c : clusters) {
+            assertTrue(c.cell.getUpperRight().lat - c.cell.getLowerLeft().lat >= 180 / Math.pow(2, 8));
+            assertNotEquals(Overlap.OUTSIDE, viewport.getOverlap(c.cell.getLowerLeft().lat,
+                    c.cell.getLowerLeft().lon, c.cell.getUpperRight().lat, c.cell.getUpperRight().lon));
+
+            TestObject best = null;
+            int bestIdx = Integer.MAX_VALUE;
+            double sumLat = 0;
+            double sumLon = 0;
+            int count = 0;
+            for (TestObject o : inArea(remaining, c.cell)) {
+                count++;
+                sumLat += o.getLatLon().lat;
+                sumLon += o.getLatLon().lon;
+                int idx = data.indexOf(o);
+                if (idx < bestIdx) {
+                    bestIdx = idx;
+                    best = o;
+                }
+            }
+            assertEquals(count, c.count);
+            assertEquals(sumLat / count, c.centroid.lat, 1e-9);
+            assertEquals(sumLon / count, c.centroid.lon, 1e-9);
+            assertSame(best, c.representative);
+            total += c.count;
+        }
+
+        // all objects in the viewport are in a cluster
+        assertTrue(total >= inArea(remaining, viewport).size());
+        assertEquals(remaining.size(), tree.aggregate(null, 0).get(0).count);
+    }
+
+    static class CategoryObject extends TestObject {
+        final int category;
+
+        CategoryObject(LatLon pos, int category) {
+            super(pos.lat, pos.lon);
+            this.category = category;
+        }
+
+        @Override
+        public long getCategories() {
+            return 1L << category;
+        }
+    }
+
+    static class CategoryFilter implements SearchFilter {
+        private final int category;
+        private final boolean indexed;
+
+        CategoryFilter(int category, boolean indexed) {
+            this.category = category;
+            this.indexed = indexed;
+        }
+
+        @Override
+        public boolean matches(LocationObject location) {
+            return ((CategoryObject) location).category == category;
+        }
+
+        @Override
+        public int getMaxResults() {
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        public long getCategories() {
+            return indexed ? 1L << category : LocationObject.ALL_CATEGORIES;
+        }
+    }
+
+    @Test
+    public void testCategoryPushdown() {
+        // category 7 only west of Greenwich
+        List<CategoryObject> data = new ArrayList<>();
+        int i = 0;
+        for (TestObject o : createData(20000, 37)) {
+            LatLon pos = o.getLatLon();
+            data.add(new CategoryObject(pos, pos.lon < 0 ? 7 : i++ % 4));
+        }
+        QuadTree<CategoryObject> tree = new QuadTree<>(16, 16);
+        for (int j = 0; j < data.size(); j++) {
+            tree.put(data.get(j), j);
+        }
+
+        BoundingBox area = new BoundingBox(new LatLon(-60, -170), new LatLon(60, 170));
+        for (int category : new int[] { 1, 7 }) {
+            Set<TestObject> expected = new HashSet<>();
+            for (CategoryObject o : data) {
+                if (o.category == category && area.contains(o.getLatLon())) {
+                    expected.add(o);
+                }
+            }
+
+            SearchResult<CategoryObject> plain = tree.getInArea(new CategoryFilter(category, false), area);
+            SearchResult<CategoryObject> indexed = tree.getInArea(new CategoryFilter(category, true), area);
+            assertEquals(expected, new HashSet<>(plain.data));
+            assertEquals(expected, new HashSet<>(indexed.data));
+            assertEquals(expected.size(), tree.count(new CategoryFilter(category, true), area));
+            assertEquals(expected, tree.streamInArea(new CategoryFilter(category, true), area)
+                    .collect(Collectors.toSet()));
+
+            // matches() is only called for objects of the category
+            assertEquals(indexed.stats.getFilterMatches(), indexed.stats.getFilterEvaluations());
+            assertTrue(indexed.stats.getFilterEvaluations() < plain.stats.getFilterEvaluations());
+        }
+
+        // node counts are not used for a filter that accepts all objects of its categories
+        SearchFilter allOf7 = new CategoryFilter(7, true) {
+            @Override
+            public boolean matchesAll() {
+                return true;
+            }
+        };
+        int numOf7 = 0;
+        int numOf7InArea = 0;
+        for (CategoryObject o : data) {
+            numOf7 += (o.category == 7 ? 1 : 0);
+            numOf7InArea += (o.category == 7 && area.contains(o.getLatLon()) ? 1 : 0);
+        }
+        assertEquals(numOf7InArea, tree.count(allOf7, area));
+        assertEquals(numOf7, tree.count(allOf7, null));
+
+        // subtrees without category 7 are not visited at all
+        SearchResult<CategoryObject> res = tree.getInArea(new CategoryFilter(7, true), area);
+        assertTrue(res.stats.getNodesVisited() * 2 < tree.getInArea(new CategoryFilter(7, false), area)
+                .stats.getNodesVisited());
+
+        // the categories are updated on remove
+        for (CategoryObject o : data) {
+            if (o.category == 7) {
+                tree.remove(o);
+            }
+        }
+        res = tree.getInArea(new CategoryFilter(7, true), area);
+        assertTrue(res.data.isEmpty());
+        assertEquals(1, res.stats.getNodesVisited());
+        assertTrue(tree.nearest(new LatLon(0, -90), 1, new CategoryFilter(7, true)).isEmpty());
+    }
+
+    @Test
+    public void testJoin() {
+        List<TestObject> stores = createData(20000, 41);
+        List<TestObject> depots = createData(500, 42);
+        // pairs across +/-180 deg.
+        stores.add(new TestObject(10, 179.99));
+        depots.add(new TestObject(10, -179.99));
+
+        double meters = 5000;
+        Set<List<TestObject>> expected = new HashSet<>();
+        for (TestObject s : stores) {
+            for (TestObject d : depots) {
+                if (s.getLatLon().getDistanceInMeters(d.getLatLon()) <= meters) {
+                    expected.add(Arrays.asList(s, d));
+                }
+            }
+        }
+        assertTrue(expected.size() > 1000);
+
+        QuadTree<TestObject> storeTree = createTree(stores, 16, 16);
+        QuadTree<TestObject> depotTree = createTree(depots, 16, 4);
+        List<List<TestObject>> pairs = new ArrayList<>();
+        storeTree.join(depotTree, meters, (s, d) -> pairs.add(Arrays.asList(s, d)));
+        assertEquals(expected.size(), pairs.size());
+        assertEquals(expected, new HashSet<>(pairs));
+
+        Set<List<TestObject>> parallel = ConcurrentHashMap.newKeySet();
+        storeTree.joinParallel(depotTree, meters, (s, d) -> parallel.add(Arrays.asList(s, d)));
+        assertEquals(expected, parallel);
+
+        SpatialHash<TestObject> depotHash = new SpatialHash<>(new ArrayList<>(depots));
+        pairs.clear();
+        storeTree.join(depotHash, meters, (s, d) -> pairs.add(Arrays.asList(s, d)));
+        assertEquals(expected.size(), pairs.size());
+        assertEquals(expected, new HashSet<>(pairs));
+
+        parallel.clear();
+        storeTree.joinParallel(depotHash, meters, (s, d) -> parallel.add(Arrays.asList(s, d)));
+        assertEquals(expected, parallel);
+    }
+
+    @Test
+    public void testGetInAreaWithShapes() {
+        List<TestObject> data = createData(20000, 11);
+        data.add(new TestObject(0.5, 179.9));
+        data.add(new TestObject(-0.5, -179.9));
+        QuadTree<TestObject> fixed = createTree(data, 14, 0);
+        QuadTree<TestObject> adaptive = createTree(data, 16, 16);
+
+        List<BoundingShape> areas = new ArrayList<>();
+        areas.add(new BoundingCircle(new LatLon(48, 11), 30000));
+        areas.add(new BoundingCircle(new LatLon(48.3, 11.4), 5000));
+        areas.add(new BoundingIntersectedShape(new BoundingCircle(new LatLon(48, 11), 30000),
+                new BoundingCircle(new LatLon(48.2, 11), 30000)));
+        areas.add(new BoundingUnionShape(areas.subList(0, 2)));
+
+        // across +/-180 deg.
+        areas.add(new BoundingBox(new LatLon(-10, 170), new LatLon(10, -170)));
+
+        AllFilter filter = new AllFilter(data.size());
+        for (BoundingShape area : areas) {
+            Set<TestObject> expected = inArea(data, area);
+            assertEquals(expected, new HashSet<>(fixed.getInArea(filter, area).data));
+            assertEquals(expected, new HashSet<>(adaptive.getInArea(filter, area).data));
+            assertEquals(expected.size(), adaptive.count(area));
+        }
+    }
+
+    @Test
+    public void testStreamInArea() {
+        List<TestObject> data = createData(20000, 12);
+        QuadTree<TestObject> tree = createTree(data, 16, 16);
+
+        List<BoundingShape> areas = new ArrayList<>();
+        areas.add(new BoundingBox(new LatLon(47.5, 10.5), new LatLon(48.5, 11.5)));
+        areas.add(new BoundingCircle(new LatLon(48, 11), 30000));
+        areas.add(new BoundingBox(new LatLon(-10, 170), new LatLon(10, -170)));
+
+        for (BoundingShape area : areas) {
+            Set<TestObject> expected = inArea(data, area);
+            assertEquals(expected, tree.streamInArea(null, area).collect(Collectors.toSet()));
+            assertEquals(expected.size(), tree.streamInArea(null, area).count());
+
+            // a limited stream returns a subset
+            List<TestObject> first = tree.streamInArea(new AllFilter(10), area).limit(10).collect(Collectors.toList());
+            assertEquals(Math.min(10, expected.size()), first.size());
+            assertTrue(expected.containsAll(first));
+        }
+
+        assertEquals(data.size(), tree.streamInArea(null, null).count());
+    }
+
+    @Test
+    public void testGetInAreaParallel() {
+        List<TestObject> data = createData(100000, 13);
+        QuadTree<TestObject> tree = createTree(data, 16, 16);
+
+        List<BoundingShape> areas = new ArrayList<>();
+        areas.add(new BoundingBox(new LatLon(40, 0), new LatLon(55, 20)));
+        areas.add(new BoundingCircle(new LatLon(48, 11), 100000));
+        areas.add(new BoundingBox(new LatLon(48.1, 11.1), new LatLon(48.2, 11.2)));
+        areas.add(new BoundingBox(new LatLon(-60, 170), new LatLon(60, -170)));
+
+        AllFilter filter = new AllFilter(data.size());
+        for (BoundingShape area : areas) {
+            assertEquals(inArea(data, area), new HashSet<>(tree.getInAreaParallel(filter, area).data));
+        }
+
+        // too many results for the tree search
+        BoundingShape area = areas.get(0);
+        assertEquals(tree.getInArea(new AllFilter(10), area).data,
+                tree.getInAreaParallel(new AllFilter(10), area).data);
+    }
+
+    @Test
+    public void testCoordinateColumns() {
+        List<TestObject> data = createData(20000, 14);
+        QuadTree<TestObject> tree = new QuadTree<>(16, 16, true);
+        for (int i = 0; i < data.size(); i++) {
+            tree.put(data.get(i), i);
+        }
+
+        // move and remove some objects
+        Random rnd = new Random(15);
+        List<TestObject> remaining = new ArrayList<>();
+        for (int i = 0; i < data.size(); i++) {
+            TestObject o = data.get(i);
+            if (i % 7 == 0) {
+                assertTrue(tree.remove(o));
+                continue;
+            } else if (i % 5 == 0) {
+                LatLon oldPos = o.getLatLon();
+                o.moveTo(new LatLon(oldPos.lat + rnd.nextGaussian() * 0.1, oldPos.lon + rnd.nextGaussian() * 0.1));
+                assertTrue(tree.move(o, oldPos));
+            }
+            remaining.add(o);
+        }
+
+        List<BoundingShape> areas = new ArrayList<>();
+        areas.add(new BoundingBox(new LatLon(47.5, 10.5), new LatLon(48.5, 11.5)));
+        areas.add(new BoundingCircle(new LatLon(48, 11), 30000));
+        areas.add(new BoundingBox(new LatLon(-10, 170), new LatLon(10, -170)));
+
+        AllFilter filter = new AllFilter(data.size());
+        for (BoundingShape area : areas) {
+            Set<TestObject> expected = inArea(remaining, area);
+            assertEquals(expected, new HashSet<>(tree.getInArea(filter, area).data));
+            assertEquals(expected, tree.streamInArea(null, area).collect(Collectors.toSet()));
+            assertEquals(expected.size(), tree.count(area));
+        }
+
+        final LatLon at = new LatLon(48.1, 11.1);
+        List<TestObject> expected = new ArrayList<>(remaining);
+        expected.sort((o1, o2) -> Double.compare(o1.getLatLon().getDistanceInMeters(at),
+                o2.getLatLon().getDistanceInMeters(at)));
+        assertEquals(expected.subList(0, 10), tree.nearest(at, 10, null));
+    }
+
+    @Test
+    public void testCategoriesInAllTrees() throws IOException {
+        // category 7 only west of Greenwich
+        List<CategoryObject> data = new ArrayList<>();
+        Map<CategoryObject, Integer> ids = new HashMap<>();
+        int i = 0;
+        for (TestObject o : createData(20000, 38)) {
+            LatLon pos = o.getLatLon();
+            CategoryObject c = new CategoryObject(pos, pos.lon < 0 ? 7 : i++ % 4);
+            ids.put(c, data.size());
+            data.add(c);
+        }
+
+        QuadTree<CategoryObject> tree = new QuadTree<>(16, 16);
+        VersionedQuadTree<CategoryObject> versioned = new VersionedQuadTree<>(16, 16);
+        VersionedQuadTree<CategoryObject>.Batch batch = versioned.batch();
+        ConcurrentQuadTree<CategoryObject> concurrent = new ConcurrentQuadTree<>(16, 16);
+        for (int j = 0; j < data.size(); j++) {
+            tree.put(data.get(j), j);
+            batch.put(data.get(j), j);
+            concurrent.put(data.get(j), j);
+        }
+        VersionedQuadTree<CategoryObject>.Snapshot snapshot = batch.commit();
+        PackedQuadTree<CategoryObject> packed = new PackedQuadTree<>(data, 16);
+        File file = tmp.newFile();
+        tree.writeSnapshot(file.toPath(), ids::get);
+        MappedQuadTree<CategoryObject> mapped = MappedQuadTree.open(file.toPath(), id -> data.get((int) id));
+
+        // filters that accept all objects of their categories, also if they
+        // claim to match all objects, and one that is checked for every object
+        List<SearchFilter> filters = new ArrayList<>();
+        for (int category : new int[] { 1, 7 }) {
+            filters.add(new SearchFilter() {
+                @Override
+                public boolean matches(LocationObject location) {
+                    return true;
+                }
+
+                @Override
+                public int getMaxResults() {
+                    return 50;
+                }
+
+                @Override
+                public boolean matchesAll() {
+                    return true;
+                }
+
+                @Override
+                public long getCategories() {
+                    return 1L << category;
+                }
+            });
+        }
+        filters.add(new CategoryFilter(7, false));
+
+        List<BoundingShape> areas = new ArrayList<>();
+        areas.add(new BoundingBox(new LatLon(-60, -170), new LatLon(60, 170)));
+        areas.add(new BoundingBox(new LatLon(-60, 170), new LatLon(60, -170)));
+        areas.add(new BoundingCircle(new LatLon(48, 11), 100000));
+        areas.add(null);
+        for (SearchFilter filter : filters) {
+            for (BoundingShape area : areas) {
+                List<CategoryObject> expected = new ArrayList<>();
+                for (CategoryObject o : data) {
+                    if ((area == null || area.contains(o.getLatLon())) && SearchFilter.hasCategory(filter, o)
+                            && filter.matches(o)) {
+                        expected.add(o);
+                    }
+                }
+
+                // the same objects in the same order from every tree
+                List<CategoryObject> best = expected.subList(0, Math.min(expected.size(), filter.getMaxResults()));
+                assertEquals(best, tree.linearSearch(filter, area).data);
+                assertEquals(best, tree.rankedSearch(filter, area).data);
+                assertEquals(best, snapshot.rankedSearch(filter, area).data);
+                assertEquals(best, concurrent.rankedSearch(filter, area).data);
+                assertEquals(best, concurrent.linearSearch(filter, area).data);
+                assertEquals(best, mapped.linearSearch(filter, area).data);
+                assertEquals(best, packed.linearSearch(filter, area).data);
+
+                Set<CategoryObject> found = new HashSet<>(tree.getInArea(filter, area).data);
+                assertEquals(found, new HashSet<>(snapshot.getInArea(filter, area).data));
+                assertEquals(found, new HashSet<>(concurrent.getInArea(filter, area).data));
+                assertEquals(found, new HashSet<>(mapped.getInArea(filter, area).data));
+                assertEquals(found, new HashSet<>(packed.getInArea(filter, area).data));
+
+                assertEquals(expected.size(), tree.count(filter, area));
+                assertEquals(expected.size(), snapshot.count(filter, area));
+                assertEquals(expected.size(), concurrent.count(filter, area));
+                assertEquals(expected.size(), mapped.count(filter, area));
+            }
+        }
+    }
+
+    @Test
+    public void testSnapshot() throws IOException {
+        List<TestObject> data = createData(20000, 16);
+        data.add(new TestObject(0.5, 179.9));
+        data.add(new TestObject(-0.5, -179.9));
+        QuadTree<TestObject> tree = createTree(data, 16, 16);
+        for (int i = 0; i < data.size(); i += 9) {
+            tree.remove(data.get(i));
+        }
+
+        File file = tmp.newFile();
+        tree.writeSnapshot(file.toPath(), o -> data.indexOf(o));
+        MappedQuadTree<TestObject> mapped = MappedQuadTree.open(file.toPath(), id -> data.get((int) id));
+        assertEquals(tree.getNumObjects(), mapped.size());
+        assertEquals(tree.getNumNodes(), mapped.getNumNodes());
+
+        List<BoundingShape> areas = new ArrayList<>();
+        areas.add(new BoundingBox(new LatLon(47.5, 10.5), new LatLon(48.5, 11.5)));
+        areas.add(new BoundingCircle(new LatLon(48, 11), 30000));
+        areas.add(new BoundingBox(new LatLon(-10, 170), new LatLon(10, -170)));
+
+        AllFilter filter = new AllFilter(data.size());
+        for (BoundingShape area : areas) {
+            assertEquals(new HashSet<>(tree.getInArea(filter, area).data),
+                    new HashSet<>(mapped.getInArea(filter, area).data));
+            assertEquals(tree.count(area), mapped.count(area));
+
+            // too many results for the tree search
+            assertEquals(tree.getInArea(new AllFilter(10), area).data, mapped.getInArea(new AllFilter(10), area).data);
+        }
+
+        // total hits of filtered searches are estimated without resolving every object
+        int[] resolved = new int[1];
+        MappedQuadTree<TestObject> counting = MappedQuadTree.open(file.toPath(), id -> {
+            resolved[0]++;
+            return data.get((int) id);
+        });
+        SearchFilter some = new AllFilter(10) {
+            @Override
+            public boolean matchesAll() {
+                return false;
+            }
+        };
+        SearchResult<TestObject> res = counting.linearSearch(some, null);
+        assertEquals(tree.linearSearch(some, null).data, res.data);
+        assertTrue(resolved[0] < 1000);
+        assertTrue(res.totalHits > 0);
+    }
+
+    @Test
+    public void testQueryStats() {
+        List<TestObject> data = createData(20000, 17);
+        QuadTree<TestObject> tree = createTree(data, 16, 16);
+
+        BoundingBox small = new BoundingBox(new LatLon(48, 11), new LatLon(48.05, 11.05));
+        SearchResult<TestObject> res = tree.getInArea(new AllFilter(data.size()), small);
+        QueryStats stats = res.stats;
+        assertEquals(QueryStats.Plan.TREE, stats.getPlan());
+        assertFalse(stats.isFallback());
+        assertEquals(res.data.size(), stats.getResults());
+        assertTrue(stats.getNodesVisited() > stats.getLeavesScanned());
+        assertTrue(stats.getObjectsTested() >= stats.getFilterEvaluations());
+        assertTrue(stats.getFilterEvaluations() >= stats.getResults());
+        assertTrue(stats.getLatencyNanos() > 0);
+
+        BoundingBox large = new BoundingBox(new LatLon(40, 0), new LatLon(55, 20));
+        res = tree.getInArea(new AllFilter(10), large);
+        assertEquals(QueryStats.Plan.RANKED_SCAN, res.stats.getPlan());
+        assertFalse(res.stats.isFallback());
+        assertEquals(10, res.stats.getResults());
+
+        res = tree.getInAreaParallel(new AllFilter(data.size()), large);
+        assertFalse(res.stats.isFallback());
+        assertEquals(res.data.size(), res.stats.getResults());
+        assertEquals(res.data.size(), res.stats.getFilterEvaluations());
+
+        QueryMetrics metrics = tree.getMetrics();
+        assertEquals(3, metrics.getQueries());
+        assertEquals(0, metrics.getFallbacks());
+        long sum = 0;
+        for (long n : metrics.getLatencyHistogram()) {
+            sum += n;
+        }
+        assertEquals(3, sum);
+        assertEquals(Long.valueOf(3), metrics.toMap().get("queries"));
+
+        metrics.reset();
+        assertEquals(0, metrics.getQueries());
+    }
+
+    @Test
+    public void testGetInAreaBatch() {
+        List<TestObject> data = createData(20000, 18);
+        QuadTree<TestObject> tree = createTree(data, 16, 16);
+
+        // tiles around the city plus a few special cases
+        List<SearchFilter> filters = new ArrayList<>();
+        List<BoundingShape> areas = new ArrayList<>();
+        for (int x = 0; x < 8; x++) {
+            for (int y = 0; y < 8; y++) {
+                areas.add(new BoundingBox(new LatLon(47 + y * 0.25, 10 + x * 0.25),
+                        new LatLon(47 + (y + 1) * 0.25, 10 + (x + 1) * 0.25)));
+                filters.add(new AllFilter(data.size()));
+            }
+        }
+        areas.add(new BoundingCircle(new LatLon(48, 11), 30000));
+        filters.add(new AllFilter(data.size()));
+        areas.add(new BoundingBox(new LatLon(40, 0), new LatLon(55, 20)));
+        filters.add(new AllFilter(10));
+        areas.add(null);
+        filters.add(new AllFilter(10));
+
+        long start = System.nanoTime();
+        List<SearchResult<TestObject>> res = tree.getInArea(filters, areas);
+        long nanos = System.nanoTime() - start;
+        assertEquals(areas.size(), res.size());
+
+        // the latencies of the searches add up to the time of the batch
+        long sum = 0;
+        for (SearchResult<TestObject> r : res) {
+            sum += r.stats.getLatencyNanos();
+        }
+        assertTrue(sum <= nanos);
+        for (int i = 0; i < areas.size(); i++) {
+            SearchResult<TestObject> expected = tree.getInArea(filters.get(i), areas.get(i));
+            assertEquals(new HashSet<>(expected.data), new HashSet<>(res.get(i).data));
+            assertEquals(expected.stats.isFallback() || expected.stats.getPlan() != QueryStats.Plan.TREE,
+                    res.get(i).stats.isFallback());
+        }
+        assertEquals(tree.getInArea(new AllFilter(10), areas.get(65)).data, res.get(65).data);
+    }
+
+    @Test
+    public void testVersionedQuadTree() {
+        List<TestObject> data = createData(20000, 19);
+        VersionedQuadTree<TestObject> tree = new VersionedQuadTree<>(16, 16);
+
+        VersionedQuadTree<TestObject>.Batch batch = tree.batch();
+        for (int i = 0; i < data.size() / 2; i++) {
+            batch.put(data.get(i), i);
+        }
+        VersionedQuadTree<TestObject>.Snapshot first = batch.commit();
+        assertEquals(1, first.getVersion());
+
+        // second batch adds the other half and removes some of the first
+        batch = tree.batch();
+        List<TestObject> remaining = new ArrayList<>();
+        for (int i = 0; i < data.size(); i++) {
+            if (i >= data.size() / 2) {
+                batch.put(data.get(i), i);
+                remaining.add(data.get(i));
+            } else if (i % 3 == 0) {
+                batch.remove(data.get(i));
+            } else {
+                remaining.add(data.get(i));
+            }
+        }
+        assertSame(first, tree.snapshot());
+        VersionedQuadTree<TestObject>.Snapshot second = batch.commit();
+        assertSame(second, tree.snapshot());
+
+        List<BoundingShape> areas = new ArrayList<>();
+        areas.add(new BoundingBox(new LatLon(47.5, 10.5), new LatLon(48.5, 11.5)));
+        areas.add(new BoundingCircle(new LatLon(48, 11), 30000));
+        areas.add(new BoundingBox(new LatLon(-10, 170), new LatLon(10, -170)));
+
+        // the first version is not changed by the second batch
+        AllFilter filter = new AllFilter(data.size());
+        for (BoundingShape area : areas) {
+            assertEquals(inArea(data.subList(0, data.size() / 2), area),
+                    new HashSet<>(first.getInArea(filter, area).data));
+            assertEquals(inArea(remaining, area), new HashSet<>(second.getInArea(filter, area).data));
+            assertEquals(inArea(remaining, area).size(), second.count(area));
+        }
+        assertEquals(data.size() / 2, first.size());
+        assertEquals(remaining.size(), second.size());
+
+        // same ranked results as a QuadTree with the same objects
+        QuadTree<TestObject> expected = new QuadTree<>(16, 16);
+        for (int i = 0; i < data.size(); i++) {
+            if (i >= data.size() / 2 || i % 3 != 0) {
+                expected.put(data.get(i), i);
+            }
+        }
+        for (BoundingShape area : areas) {
+            assertEquals(new HashSet<>(expected.getInArea(new AllFilter(10), area).data),
+                    new HashSet<>(second.getInArea(new AllFilter(10), area).data));
+        }
+        assertEquals(expected.getInArea(new AllFilter(10), areas.get(0)).data,
+                second.getInArea(new AllFilter(10), areas.get(0)).data);
+
+        // total hits with a filter that does not match all objects
+        for (int maxResults : new int[] { data.size(), 10 }) {
+            SearchFilter evenLat = new AllFilter(maxResults) {
+                @Override
+                public boolean matches(LocationObject location) {
+                    return ((int) (location.getLatLon().lat * 1000)) % 2 == 0;
+                }
+
+                @Override
+                public boolean matchesAll() {
+                    return false;
+                }
+            };
+            for (BoundingShape area : areas) {
+                int matching = 0;
+                for (TestObject o : inArea(remaining, area)) {
+                    matching += (evenLat.matches(o) ? 1 : 0);
+                }
+                assertEquals(matching, second.count(evenLat, area));
+
+                SearchResult<TestObject> res = second.rankedSearch(evenLat, area);
+                if (res.data.size() < maxResults) {
+                    // all matches were found
+                    assertEquals(matching, res.data.size());
+                    assertEquals(matching, res.totalHits);
+                } else {
+                    // estimated from the tested objects
+                    assertTrue(res.totalHits >= res.data.size() && res.totalHits <= second.count(area));
+                }
+            }
+        }
+
+        for (TestObject o : remaining) {
+            tree.remove(o);
+        }
+        assertEquals(0, tree.snapshot().size());
+        assertEquals(remaining.size(), second.size());
+    }
+
+    @Test
+    public void testQueryPlanner() {
+        List<TestObject> data = createData(20000, 20);
+        QuadTree<TestObject> tree = createTree(data, 16, 16);
+
+        // matches objects with (lon * 1000) % mod == 0; the statistics of all
+        // instances with the same key are shared
+        class ModFilter extends AllFilter {
+            private final int mod;
+            private final Object key;
+
+            ModFilter(int maxResults, int mod, Object key) {
+                super(maxResults);
+                this.mod = mod;
+                this.key = key;
+            }
+
+            @Override
+            public boolean matches(LocationObject location) {
+                return ((int) (location.getLatLon().lon * 1000)) % this.mod == 0;
+            }
+
+            @Override
+            public boolean matchesAll() {
+                return false;
+            }
+
+            @Override
+            public Object getSelectivityKey() {
+                return this.key;
+            }
+        }
+
+        // nothing known about the filter yet: tree search with fallback
+        BoundingBox world = new BoundingBox(new LatLon(-89, -179), new LatLon(89, 179));
+        SearchResult<TestObject> first = tree.getInArea(new ModFilter(10, 2, "half"), world);
+        assertEquals(QueryStats.Plan.TREE, first.stats.getPlan());
+        assertTrue(first.stats.isFallback());
+
+        // now the tree search is skipped
+        SearchResult<TestObject> second = tree.getInArea(new ModFilter(10, 2, "half"), world);
+        assertNotEquals(QueryStats.Plan.TREE, second.stats.getPlan());
+        assertFalse(second.stats.isFallback());
+        assertEquals(first.data, second.data);
+
+        // but not for a filter with another key
+        assertEquals(QueryStats.Plan.TREE, tree.getInArea(new ModFilter(10, 2, "other"), world).stats.getPlan());
+
+        // filters without a key of their own share the statistics of their class
+        class HalfFilter extends AllFilter {
+            HalfFilter(int maxResults) {
+                super(maxResults);
+            }
+
+            @Override
+            public boolean matches(LocationObject location) {
+                return ((int) (location.getLatLon().lon * 1000)) % 2 == 0;
+            }
+
+            @Override
+            public boolean matchesAll() {
+                return false;
+            }
+        }
+        assertEquals(QueryStats.Plan.TREE, tree.getInArea(new HalfFilter(10), world).stats.getPlan());
+        assertNotEquals(QueryStats.Plan.TREE, tree.getInArea(new HalfFilter(10), world).stats.getPlan());
+
+        // and still used for small areas
+        BoundingBox small = new BoundingBox(new LatLon(48, 11), new LatLon(48.05, 11.05));
+        SearchResult<TestObject> res = tree.getInArea(new ModFilter(10, 2, "half"), small);
+        assertEquals(QueryStats.Plan.TREE, res.stats.getPlan());
+        Set<TestObject> expected = new HashSet<>();
+        for (TestObject o : inArea(data, small)) {
+            if (new ModFilter(10, 2, "half").matches(o)) {
+                expected.add(o);
+            }
+        }
+        assertEquals(expected, new HashSet<>(res.data));
+
+        // a wrong estimate does not change the result: this filter matches
+        // fewer objects than the tree search returns unordered
+        ModFilter rare = new ModFilter(10, 1000, "half");
+        res = tree.getInArea(rare, world);
+        assertNotEquals(QueryStats.Plan.TREE, res.stats.getPlan());
+        expected.clear();
+        for (TestObject o : inArea(data, world)) {
+            if (rare.matches(o)) {
+                expected.add(o);
+            }
+        }
+        assertTrue(expected.size() > 10);
+        assertEquals(expected, new HashSet<>(res.data));
+
+        // the whole world is scanned in rank order
+        res = tree.getInArea(new ModFilter(10, 2, "half"), null);
+        assertEquals(QueryStats.Plan.RANKED_SCAN, res.stats.getPlan());
+        assertEquals(10, res.data.size());
+    }
+}
@@ -2,11 +2,26 @@ package jgeo;
 
 import static org.junit.Assert.*;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Collectors;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 public class SpatialHashTest extends TestBase {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
     static class TestObject implements LocationObject {
         private final LatLon latLon;
         TestObject(double lat, double lon) {
@@ -95,4 +110,444 @@ public class SpatialHashTest extends TestBase {
         testGet(new LatLon(-0.1,0), new LatLon(-2,0));
     }
 
+    @Test
+    public void testGetBoundingBox() {
+        // many values per degree of latitude, so that rows end within a search area
+        Random rnd = new Random(3);
+        ArrayList<TestObject> values = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            values.add(new TestObject(48 + rnd.nextGaussian() * 0.5, 11 + rnd.nextGaussian() * 0.5));
+        }
+        this.hash = new SpatialHash<>(new ArrayList<>(values));
+
+        for (int i = 0; i < 100; i++) {
+            LatLon center = new LatLon(48 + rnd.nextGaussian(), 11 + rnd.nextGaussian());
+            BoundingBox bb = BoundingBox.aroundPoint(center, 20000.0);
+            List<TestObject> expected = values.stream().filter(o -> bb.contains(o.getLatLon()))
+                    .collect(Collectors.toList());
+            assertEquals(new HashSet<>(expected), new HashSet<>(hash.get(bb)));
+        }
+    }
+
+    @Test
+    public void testGetOnBorders() {
+        // many equal longitudes, some of them on the borders of the area
+        ArrayList<TestObject> values = new ArrayList<>();
+        for (int lat = 0; lat < 10; lat++) {
+            for (int lon = 0; lon < 10; lon++) {
+                values.add(new TestObject(lat, lon));
+            }
+        }
+        this.hash = new SpatialHash<>(new ArrayList<>(values));
+
+        BoundingBox bb = new BoundingBox(new LatLon(2, 3), new LatLon(5, 7));
+        assertEquals(20, hash.get(bb).size());
+        assertEquals(20, hash.stream(bb).count());
+
+        int n = 0;
+        for (TestObject o : hash) {
+            n++;
+        }
+        assertEquals(values.size(), n);
+    }
+
+    private void assertContent(Set<TestObject> expected, Random rnd) {
+        assertEquals(expected.size(), hash.size());
+        Set<TestObject> all = new HashSet<>();
+        for (TestObject o : hash) {
+            all.add(o);
+        }
+        assertEquals(expected, all);
+
+        for (int i = 0; i < 20; i++) {
+            double lat = rnd.nextDouble() * 20 - 10;
+            double lon = rnd.nextDouble() * 20 - 10;
+            BoundingBox bb = new BoundingBox(new LatLon(lat, lon), new LatLon(lat + 2, lon + 2));
+            Set<TestObject> inArea = expected.stream().filter(o -> bb.contains(o.getLatLon()))
+                    .collect(Collectors.toSet());
+            assertEquals(inArea, new HashSet<>(hash.get(bb)));
+            assertEquals(inArea, hash.stream(bb).collect(Collectors.toSet()));
+        }
+
+        // every value is the closest one to its own position
+        for (TestObject o : expected) {
+            assertEquals(0, hash.get(o.getLatLon()).getLatLon().getDistanceInMeters(o.getLatLon()), 0.0);
+        }
+    }
+
+    @Test
+    public void testAddAndRemove() {
+        Random rnd = new Random(4);
+        List<TestObject> values = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            values.add(new TestObject(rnd.nextDouble() * 20 - 10, rnd.nextDouble() * 20 - 10));
+        }
+        List<Runnable> compactions = new ArrayList<>();
+        this.hash = new SpatialHash<>(new ArrayList<>(values), compactions::add);
+        Set<TestObject> expected = new HashSet<>(values);
+
+        for (int i = 0; i < 1000; i++) {
+            // some values outside of the initial area
+            TestObject o = new TestObject(rnd.nextDouble() * 24 - 12, rnd.nextDouble() * 24 - 12);
+            hash.add(o);
+            expected.add(o);
+            TestObject removed = values.get(rnd.nextInt(values.size()));
+            assertEquals(expected.remove(removed), hash.remove(removed));
+        }
+        assertFalse(hash.remove(new TestObject(0, 0)));
+        assertContent(expected, rnd);
+
+        // one compaction was started, the changes after its start are applied to its result
+        assertEquals(1, compactions.size());
+        TestObject o = new TestObject(1, 1);
+        hash.add(o);
+        expected.add(o);
+        compactions.get(0).run();
+        assertContent(expected, rnd);
+
+        hash.compact();
+        assertContent(expected, rnd);
+
+        // from and to an empty hash
+        this.hash = new SpatialHash<>(new ArrayList<>());
+        assertNull(hash.get(new LatLon(0, 0)));
+        hash.add(o);
+        assertSame(o, hash.get(new LatLon(0, 0)));
+        assertTrue(hash.remove(o));
+        assertNull(hash.get(new LatLon(0, 0)));
+        assertEquals(0, hash.size());
+    }
+
+    @Test
+    public void testAddKeepsIterators() {
+        Random rnd = new Random(9);
+        List<TestObject> values = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            values.add(new TestObject(rnd.nextDouble() * 20 - 10, rnd.nextDouble() * 20 - 10));
+        }
+        this.hash = new SpatialHash<>(new ArrayList<>(values), r -> { });
+        Set<TestObject> expected = new HashSet<>(values);
+
+        // values added to the same rows after an iterator was created are not returned by it
+        List<Iterator<TestObject>> iterators = new ArrayList<>();
+        List<Set<TestObject>> contents = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            if (i % 50 == 0) {
+                iterators.add(hash.iterator());
+                contents.add(new HashSet<>(expected));
+            }
+            TestObject o = new TestObject(rnd.nextDouble() * 0.1, rnd.nextDouble() * 20 - 10);
+            hash.add(o);
+            expected.add(o);
+            if (i % 7 == 0) {
+                TestObject removed = values.get(rnd.nextInt(values.size()));
+                assertEquals(expected.remove(removed), hash.remove(removed));
+            }
+        }
+        for (int i = 0; i < iterators.size(); i++) {
+            Set<TestObject> all = new HashSet<>();
+            iterators.get(i).forEachRemaining(all::add);
+            assertEquals(contents.get(i), all);
+        }
+        assertContent(expected, rnd);
+    }
+
+    @Test
+    public void testCompactionRejected() {
+        Random rnd = new Random(8);
+        List<TestObject> values = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            values.add(new TestObject(rnd.nextDouble() * 20 - 10, rnd.nextDouble() * 20 - 10));
+        }
+        ForkJoinPool pool = new ForkJoinPool(2);
+        this.hash = new SpatialHash<>(new ArrayList<>(values), pool);
+        pool.shutdown();
+        Set<TestObject> expected = new HashSet<>(values);
+
+        // the shut down pool rejects the compactions, the changes are kept in the deltas
+        for (int i = 0; i < 3000; i++) {
+            TestObject o = new TestObject(rnd.nextDouble() * 20 - 10, rnd.nextDouble() * 20 - 10);
+            hash.add(o);
+            expected.add(o);
+        }
+        assertContent(expected, rnd);
+
+        // compactions are started again with an executor that accepts them
+        List<Runnable> compactions = new ArrayList<>();
+        boolean[] reject = { true };
+        this.hash = new SpatialHash<>(new ArrayList<>(values), r -> {
+            if (reject[0]) {
+                throw new RejectedExecutionException();
+            }
+            compactions.add(r);
+        });
+        expected = new HashSet<>(values);
+        for (int i = 0; i < 2000; i++) {
+            reject[0] = (i < 1500);
+            TestObject o = new TestObject(rnd.nextDouble() * 20 - 10, rnd.nextDouble() * 20 - 10);
+            hash.add(o);
+            expected.add(o);
+        }
+        assertEquals(1, compactions.size());
+        compactions.get(0).run();
+        assertContent(expected, rnd);
+    }
+
+    @Test
+    public void testNearestAndWithinRadius() {
+        Random rnd = new Random(5);
+        List<TestObject> values = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            values.add(new TestObject(rnd.nextDouble() * 170 - 85, rnd.nextDouble() * 360 - 180));
+        }
+        this.hash = new SpatialHash<>(new ArrayList<>(values), Runnable::run);
+        for (int i = 0; i < 200; i++) {
+            TestObject o = new TestObject(rnd.nextDouble() * 170 - 85, rnd.nextDouble() * 360 - 180);
+            hash.add(o);
+            values.add(o);
+            assertTrue(hash.remove(values.remove(rnd.nextInt(values.size()))));
+        }
+
+        List<LatLon> queries = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            queries.add(new LatLon(rnd.nextDouble() * 170 - 85, rnd.nextDouble() * 360 - 180));
+        }
+        // across +/-180 deg. and close to the poles
+        queries.add(new LatLon(10, 179.9));
+        queries.add(new LatLon(-10, -179.9));
+        queries.add(new LatLon(89.5, 0));
+
+        for (LatLon at : queries) {
+            List<TestObject> sorted = new ArrayList<>(values);
+            sorted.sort((o1, o2) -> Double.compare(o1.getLatLon().getDistanceInMeters(at),
+                    o2.getLatLon().getDistanceInMeters(at)));
+
+            List<TestObject> nearest = hash.nearest(at, 10);
+            assertEquals(10, nearest.size());
+            for (int i = 0; i < 10; i++) {
+                assertEquals(sorted.get(i).getLatLon().getDistanceInMeters(at),
+                        nearest.get(i).getLatLon().getDistanceInMeters(at), 0.0);
+            }
+
+            double meters = 500000;
+            Set<TestObject> expected = values.stream()
+                    .filter(o -> o.getLatLon().getDistanceInMeters(at) <= meters).collect(Collectors.toSet());
+            List<TestObject> within = hash.withinRadius(at, meters);
+            assertEquals(at.toString(), expected, new HashSet<>(within));
+            assertEquals(sorted.subList(0, within.size()), within);
+        }
+        assertTrue(hash.nearest(new LatLon(0, 0), 0).isEmpty());
+    }
+
+    @Test
+    public void testGetBatch() {
+        Random rnd = new Random(6);
+        List<TestObject> values = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            values.add(new TestObject(rnd.nextDouble() * 20 + 40, rnd.nextDouble() * 20));
+        }
+        this.hash = new SpatialHash<>(new ArrayList<>(values), Runnable::run);
+        for (int i = 0; i < 100; i++) {
+            TestObject o = new TestObject(rnd.nextDouble() * 20 + 40, rnd.nextDouble() * 20);
+            hash.add(o);
+            values.add(o);
+            assertTrue(hash.remove(values.remove(rnd.nextInt(values.size()))));
+        }
+
+        LatLon[] points = new LatLon[10000];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = new LatLon(rnd.nextDouble() * 24 + 38, rnd.nextDouble() * 24 - 2);
+        }
+
+        List<TestObject> res = hash.get(points);
+        List<TestObject> parallel = hash.getParallel(points);
+        assertEquals(points.length, res.size());
+        for (int i = 0; i < points.length; i++) {
+            LatLon at = points[i];
+            double distMin = Double.MAX_VALUE;
+            for (TestObject o : values) {
+                distMin = Math.min(distMin, o.getLatLon().getDistanceInMeters(at));
+            }
+            assertEquals(distMin, res.get(i).getLatLon().getDistanceInMeters(at), 0.0);
+            assertEquals(distMin, parallel.get(i).getLatLon().getDistanceInMeters(at), 0.0);
+        }
+
+        this.hash = new SpatialHash<>(new ArrayList<>());
+        assertNull(hash.get(points).get(0));
+    }
+
+    @Test
+    public void testGetBatchAcrossEquator() {
+        Random rnd = new Random(7);
+        List<TestObject> values = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            values.add(new TestObject(rnd.nextDouble() * 20 - 10, rnd.nextDouble() * 20));
+        }
+        this.hash = new SpatialHash<>(new ArrayList<>(values));
+
+        LatLon[] points = new LatLon[10000];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = new LatLon(rnd.nextDouble() * 24 - 12, rnd.nextDouble() * 24 - 2);
+        }
+
+        // the sweep visits the points from south to north
+        for (boolean parallel : new boolean[] { false, true }) {
+            int[] order = SpatialHash.sortByLat(points, parallel);
+            for (int i = 1; i < order.length; i++) {
+                assertTrue(points[order[i - 1]].lat <= points[order[i]].lat);
+            }
+        }
+
+        List<TestObject> res = hash.get(points);
+        List<TestObject> parallel = hash.getParallel(points);
+        for (int i = 0; i < points.length; i++) {
+            LatLon at = points[i];
+            double distMin = Double.MAX_VALUE;
+            for (TestObject o : values) {
+                distMin = Math.min(distMin, o.getLatLon().getDistanceInMeters(at));
+            }
+            assertEquals(distMin, res.get(i).getLatLon().getDistanceInMeters(at), 0.0);
+            assertEquals(distMin, parallel.get(i).getLatLon().getDistanceInMeters(at), 0.0);
+        }
+    }
+
+    @Test
+    public void testGetLatLonExact() {
+        // unevenly spaced longitudes, so that the closest value is often
+        // not next to the longitude of the point within its row
+        Random rnd = new Random(7);
+        List<TestObject> values = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            double lon = Math.pow(rnd.nextDouble(), 3) * 360 - 180;
+            values.add(new TestObject(rnd.nextGaussian() * 30, lon));
+        }
+        this.hash = new SpatialHash<>(new ArrayList<>(values));
+
+        for (int i = 0; i < 500; i++) {
+            LatLon at = new LatLon(rnd.nextDouble() * 160 - 80, rnd.nextDouble() * 360 - 180);
+            double distMin = Double.MAX_VALUE;
+            for (TestObject o : values) {
+                distMin = Math.min(distMin, o.getLatLon().getDistanceInMeters(at));
+            }
+            assertEquals(distMin, hash.get(at).getLatLon().getDistanceInMeters(at), 0.0);
+        }
+    }
+
+    @Test
+    public void testParallelConstruction() {
+        Random rnd = new Random(5);
+        ArrayList<TestObject> values = new ArrayList<>();
+        for (int i = 0; i < 50000; i++) {
+            // coarse coordinates for many values with the same latitude or longitude
+            values.add(new TestObject(rnd.nextInt(2000) / 100.0 - 10, rnd.nextInt(2000) / 100.0 - 10));
+        }
+        SpatialHash<TestObject> sequential = new SpatialHash<>(new ArrayList<>(values));
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            this.hash = SpatialHash.buildParallel(new ArrayList<>(values), pool);
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(values.size(), hash.size());
+
+        Iterator<TestObject> it = sequential.iterator();
+        for (TestObject o : hash) {
+            assertSame(it.next(), o);
+        }
+        assertFalse(it.hasNext());
+
+        for (int i = 0; i < 20; i++) {
+            double lat = rnd.nextDouble() * 20 - 10;
+            double lon = rnd.nextDouble() * 20 - 10;
+            BoundingBox bb = new BoundingBox(new LatLon(lat, lon), new LatLon(lat + 2, lon + 2));
+            Set<TestObject> expected = values.stream().filter(o -> bb.contains(o.getLatLon()))
+                    .collect(Collectors.toSet());
+            assertEquals(expected, new HashSet<>(hash.get(bb)));
+        }
+    }
+
+    @Test
+    public void testStream() {
+        Random rnd = new Random(1);
+        ArrayList<TestObject> values = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            values.add(new TestObject(rnd.nextDouble() * 20 - 10, rnd.nextDouble() * 20 - 10));
+        }
+        this.hash = new SpatialHash<>(new ArrayList<>(values));
+
+        for (int i = 0; i < 20; i++) {
+            double lat = rnd.nextDouble() * 20 - 10;
+            double lon = rnd.nextDouble() * 20 - 10;
+            BoundingBox bb = new BoundingBox(new LatLon(lat, lon), new LatLon(lat + 2, lon + 2));
+
+            List<TestObject> expected = hash.get(bb);
+            assertEquals(new HashSet<>(expected), hash.stream(bb).collect(Collectors.toSet()));
+            assertEquals(Math.min(5, expected.size()), hash.stream(bb).limit(5).count());
+        }
+    }
+
+    @Test
+    public void testSnapshot() throws IOException {
+        Random rnd = new Random(2);
+        ArrayList<TestObject> values = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            values.add(new TestObject(rnd.nextDouble() * 20 - 10, rnd.nextDouble() * 20 - 10));
+        }
+        // values on both sides of +/-180 deg.
+        for (int i = 0; i < 1000; i++) {
+            double lon = 180 - rnd.nextDouble() * 5;
+            values.add(new TestObject(rnd.nextDouble() * 20 - 10, i % 2 == 0 ? lon : -lon));
+        }
+        this.hash = new SpatialHash<>(new ArrayList<>(values));
+
+        File file = tmp.newFile();
+        hash.writeSnapshot(file.toPath(), o -> values.indexOf(o));
+        MappedSpatialHash<TestObject> mapped = MappedSpatialHash.open(file.toPath(), id -> values.get((int) id));
+        assertEquals(values.size(), mapped.size());
+
+        for (int i = 0; i < 20; i++) {
+            double lat = rnd.nextDouble() * 20 - 10;
+            double lon = rnd.nextDouble() * 20 - 10;
+            BoundingBox bb = new BoundingBox(new LatLon(lat, lon), new LatLon(lat + 2, lon + 2));
+            assertEquals(new HashSet<>(hash.get(bb)), new HashSet<>(mapped.get(bb)));
+
+            // the mapped hash returns the exact closest value
+            LatLon at = new LatLon(lat, lon);
+            double distMin = Double.MAX_VALUE;
+            for (TestObject o : values) {
+                distMin = Math.min(distMin, o.getLatLon().getDistanceInMeters(at));
+            }
+            assertEquals(distMin, mapped.get(at).getLatLon().getDistanceInMeters(at), 0.0);
+        }
+
+        // areas across +/-180 deg. give the same values from the hash, its
+        // stream and the snapshot, also with values in the deltas of the rows
+        BoundingBox across = new BoundingBox(new LatLon(-5, 177), new LatLon(5, -177));
+        Set<TestObject> expected = new HashSet<>();
+        for (TestObject o : values) {
+            if (across.contains(o.getLatLon())) {
+                expected.add(o);
+            }
+        }
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, new HashSet<>(hash.get(across)));
+        assertEquals(expected, hash.stream(across).collect(Collectors.toSet()));
+        assertEquals(expected, new HashSet<>(mapped.get(across)));
+
+        TestObject added = new TestObject(0, -179);
+        values.add(added);
+        hash.add(added);
+        expected.add(added);
+        assertEquals(expected, new HashSet<>(hash.get(across)));
+        assertEquals(expected, hash.stream(across).collect(Collectors.toSet()));
+
+        // a new snapshot replaces the file as a whole: the old one stays
+        // mapped unchanged and no temporary file is left behind
+        hash.writeSnapshot(file.toPath(), o -> values.indexOf(o));
+        assertEquals(values.size() - 1, mapped.size());
+        MappedSpatialHash<TestObject> updated = MappedSpatialHash.open(file.toPath(), id -> values.get((int) id));
+        assertEquals(values.size(), updated.size());
+        assertEquals(expected, new HashSet<>(updated.get(across)));
+        assertEquals(1, file.getParentFile().list().length);
+    }
 }